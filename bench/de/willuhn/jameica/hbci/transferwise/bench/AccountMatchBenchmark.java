@@ -0,0 +1,67 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Account;
+import de.willuhn.jameica.hbci.transferwise.transport.AccountMatcher;
+
+/**
+ * Misst die Suche des Accounts anhand der IBAN.
+ * Gesucht wird der letzte Account, also der unguenstigste Fall.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AccountMatchBenchmark
+{
+  @Param({"1000","10000","100000"})
+  private int size;
+
+  private Account[] accounts = null;
+  private String iban = null;
+
+  /**
+   * Erzeugt die Testdaten.
+   */
+  @Setup
+  public void setup()
+  {
+    this.accounts = Fixtures.accounts(this.size);
+    this.iban = Fixtures.iban(this.size - 1);
+  }
+
+  /**
+   * Sucht den Account.
+   * @return die ID des Accounts.
+   */
+  @Benchmark
+  public String find()
+  {
+    return AccountMatcher.find(this.accounts,this.iban);
+  }
+}
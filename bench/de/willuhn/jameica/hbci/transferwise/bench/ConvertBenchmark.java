@@ -0,0 +1,74 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.willuhn.datasource.rmi.DBService;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.hbci.transferwise.synchronize.TransactionConverter;
+
+/**
+ * Misst die Konvertierung der Buchungen in Hibiscus-Datensaetze.
+ * Die Datensaetze werden nur im Speicher erzeugt, die Datenbank ist nicht beteiligt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConvertBenchmark
+{
+  @Param({"1000","10000","100000"})
+  private int size;
+
+  private List<Transaction> transactions = null;
+  private DBService service = null;
+
+  /**
+   * Erzeugt die Testdaten.
+   */
+  @Setup
+  public void setup()
+  {
+    this.transactions = Fixtures.transactions(this.size);
+    this.service = Fixtures.dbService();
+  }
+
+  /**
+   * Konvertiert alle Buchungen.
+   * @param bh Blackhole fuer die Datensaetze.
+   * @throws Exception
+   */
+  @Benchmark
+  public void convert(Blackhole bh) throws Exception
+  {
+    for (Transaction t:this.transactions)
+    {
+      bh.consume(TransactionConverter.convert(t,this.service));
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.hbci.transferwise.synchronize.UmsatzIndex;
+
+/**
+ * Misst die Duplikat-Erkennung gegen die existierenden Umsaetze.
+ * Die Haelfte der neuen Umsaetze ist bereits vorhanden.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DuplicateCheckBenchmark
+{
+  @Param({"1000","10000","100000"})
+  private int size;
+
+  private List<Umsatz> existing = null;
+  private List<Umsatz> incoming = null;
+
+  /**
+   * Erzeugt die Testdaten.
+   */
+  @Setup
+  public void setup()
+  {
+    this.existing = Fixtures.umsaetze(0,this.size);
+    this.incoming = Fixtures.umsaetze(this.size / 2,this.size);
+  }
+
+  /**
+   * Baut den Index auf und prueft alle neuen Umsaetze dagegen.
+   * @return die Anzahl der Duplikate.
+   * @throws Exception
+   */
+  @Benchmark
+  public int index() throws Exception
+  {
+    final UmsatzIndex index = new UmsatzIndex(Fixtures.iterator(this.existing));
+    int found = 0;
+    for (Umsatz u:this.incoming)
+    {
+      if (index.contains(u))
+        found++;
+    }
+    return found;
+  }
+
+  /**
+   * Lineare Suche, wie sie vor dem Index verwendet wurde.
+   * Bei 100.000 Umsaetzen dauert das sehr lange. Fuer einen schnellen Lauf kann die Groesse
+   * per "-p size=1000,10000" eingeschraenkt werden.
+   * @return die Anzahl der Duplikate.
+   * @throws Exception
+   */
+  @Benchmark
+  public int linear() throws Exception
+  {
+    int found = 0;
+    for (Umsatz u:this.incoming)
+    {
+      for (Umsatz e:this.existing)
+      {
+        if (e.equals(u))
+        {
+          found++;
+          break;
+        }
+      }
+    }
+    return found;
+  }
+}
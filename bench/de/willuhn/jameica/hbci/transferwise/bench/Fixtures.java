@@ -0,0 +1,339 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.rmi.RemoteException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.datasource.rmi.DBService;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Account;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Balance;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.BankDetails;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+
+/**
+ * Erzeugt synthetische Testdaten fuer die Benchmarks.
+ * Die Daten sind deterministisch, damit die Ergebnisse vergleichbar bleiben.
+ */
+public class Fixtures
+{
+  private final static DateFormat CHECKSUM_DATEFORMAT = new SimpleDateFormat("dd.MM.yyyy");
+
+  /**
+   * Erzeugt einen Kontoauszug im JSON-Format von Transferwise.
+   * @param size die Anzahl der Buchungen.
+   * @return der Kontoauszug.
+   */
+  public static byte[] statement(int size)
+  {
+    final DateFormat df = new SimpleDateFormat(Plugin.DATEFORMAT);
+    df.setTimeZone(TimeZone.getTimeZone(Plugin.TIMEZONE));
+
+    final StringBuilder sb = new StringBuilder();
+    sb.append("{\"accountHolder\":{\"type\":\"PERSONAL\",\"firstName\":\"Max\",\"lastName\":\"Mustermann\"},");
+    sb.append("\"issuer\":{\"name\":\"TransferWise Ltd.\",\"city\":\"London\",\"country\":\"United Kingdom\"},");
+    sb.append("\"transactions\":[");
+
+    BigDecimal balance = BigDecimal.ZERO;
+    for (int i=0;i<size;++i)
+    {
+      final BigDecimal amount = amount(i);
+      balance = balance.add(amount);
+      if (i > 0)
+        sb.append(',');
+      sb.append("{\"type\":\"").append(amount.signum() < 0 ? "DEBIT" : "CREDIT").append("\",");
+      sb.append("\"date\":\"").append(df.format(date(i))).append("\",");
+      sb.append("\"amount\":{\"value\":").append(amount).append(",\"currency\":\"EUR\"},");
+      sb.append("\"totalFees\":{\"value\":0.00,\"currency\":\"EUR\"},");
+      sb.append("\"details\":{\"type\":\"TRANSFER\",\"description\":\"Zahlung ").append(i).append("\",");
+      sb.append("\"senderName\":\"Sender ").append(i % 97).append("\",");
+      sb.append("\"senderAccount\":\"DE0210000000000000").append(String.format("%04d",i % 10000)).append("\",");
+      sb.append("\"paymentReference\":\"Referenz ").append(i).append("\"},");
+      sb.append("\"exchangeDetails\":null,");
+      sb.append("\"runningBalance\":{\"value\":").append(balance).append(",\"currency\":\"EUR\"},");
+      sb.append("\"referenceNumber\":\"TRANSFER-").append(i).append("\"}");
+    }
+
+    sb.append("],\"endOfStatementBalance\":{\"value\":").append(balance).append(",\"currency\":\"EUR\"},");
+    sb.append("\"query\":{\"currency\":\"EUR\",\"accountId\":1}}");
+
+    try
+    {
+      return sb.toString().getBytes("UTF-8");
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Erzeugt die Accounts von Transferwise mit jeweils einer Waehrung.
+   * @param size die Anzahl der Accounts.
+   * @return die Accounts.
+   */
+  public static Account[] accounts(int size)
+  {
+    final Account[] result = new Account[size];
+    for (int i=0;i<size;++i)
+    {
+      final BankDetails details = new BankDetails();
+      details.iban = iban(i);
+
+      final Balance b = new Balance();
+      b.currency = "EUR";
+      b.bankDetails = details;
+
+      final Account a = new Account();
+      a.id = i;
+      a.balances.add(b);
+      result[i] = a;
+    }
+    return result;
+  }
+
+  /**
+   * Liefert die IBAN des Accounts.
+   * @param i der Index des Accounts.
+   * @return die IBAN mit Leerzeichen, so wie sie der User eingibt.
+   */
+  public static String iban(int i)
+  {
+    final String s = String.format("BE%02d9670%08d",i % 100,i);
+    final StringBuilder sb = new StringBuilder();
+    for (int k=0;k<s.length();++k)
+    {
+      if (k > 0 && k % 4 == 0)
+        sb.append(' ');
+      sb.append(s.charAt(k));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Erzeugt Umsaetze.
+   * Die Umsaetze sind Proxies, die nur die fuer den Abgleich noetigen Getter implementieren.
+   * Die Datenbank von Hibiscus wird hierfuer nicht benoetigt.
+   * @param from Index des ersten Umsatzes.
+   * @param size die Anzahl der Umsaetze.
+   * @return die Umsaetze.
+   */
+  public static List<Umsatz> umsaetze(int from, int size)
+  {
+    final List<Umsatz> result = new ArrayList<Umsatz>(size);
+    for (int i=from;i<from+size;++i)
+    {
+      result.add(umsatz(i));
+    }
+    return result;
+  }
+
+  /**
+   * Liefert die Buchungen eines Kontoauszuges.
+   * @param size die Anzahl der Buchungen.
+   * @return die Buchungen.
+   */
+  public static List<Transaction> transactions(int size)
+  {
+    try
+    {
+      return new ObjectMapper().readValue(statement(size),AccountStatement.class).transactions;
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Liefert einen Datenbank-Service, der die Datensaetze nur als Proxies im Speicher erzeugt.
+   * Die Setter merken sich die Werte, die Getter liefern sie wieder.
+   * Die Datenbank von Hibiscus wird hierfuer nicht benoetigt.
+   * @return der Datenbank-Service.
+   */
+  public static DBService dbService()
+  {
+    final InvocationHandler handler = (proxy,method,args) -> {
+      if (method.getName().equals("createObject"))
+        return record((Class<?>) args[0]);
+      return null;
+    };
+    return (DBService) Proxy.newProxyInstance(Fixtures.class.getClassLoader(),new Class<?>[]{DBService.class},handler);
+  }
+
+  /**
+   * Liefert einen Iterator ueber die Umsaetze.
+   * @param list die Umsaetze.
+   * @return der Iterator.
+   */
+  public static DBIterator iterator(List<Umsatz> list)
+  {
+    final Iterator<Umsatz> it = list.iterator();
+    final InvocationHandler handler = (proxy,method,args) -> {
+      switch (method.getName())
+      {
+        case "hasNext": return it.hasNext();
+        case "next":    return it.next();
+        case "size":    return list.size();
+        default:        return null;
+      }
+    };
+    return (DBIterator) Proxy.newProxyInstance(Fixtures.class.getClassLoader(),new Class<?>[]{DBIterator.class},handler);
+  }
+
+  /**
+   * Erzeugt einen Datensatz, der die Werte der Setter nur im Speicher haelt.
+   * @param type der Typ des Datensatzes.
+   * @return der Datensatz.
+   */
+  private static Object record(Class<?> type)
+  {
+    final Map<String,Object> values = new HashMap<String,Object>();
+    final InvocationHandler handler = (proxy,method,args) -> {
+      final String name = method.getName();
+      if (name.startsWith("set") && args != null && args.length == 1)
+      {
+        values.put(name.substring(3),args[0]);
+        return null;
+      }
+      
+      final Object value = name.startsWith("get") ? values.get(name.substring(3)) : null;
+      if (value != null || !method.getReturnType().isPrimitive())
+        return value;
+      
+      // Primitive Rueckgabewerte duerfen nicht NULL sein
+      final Class<?> r = method.getReturnType();
+      if (r == boolean.class) return Boolean.FALSE;
+      if (r == double.class)  return Double.valueOf(0d);
+      if (r == int.class)     return Integer.valueOf(0);
+      if (r == long.class)    return Long.valueOf(0L);
+      return null;
+    };
+    return Proxy.newProxyInstance(Fixtures.class.getClassLoader(),new Class<?>[]{type},handler);
+  }
+
+  /**
+   * Erzeugt einen Umsatz.
+   * Der Vergleich per "equals" entspricht dem von Hibiscus in UmsatzImpl. Verglichen werden
+   * die Pruefsummen beider Umsaetze, die bei jedem Aufruf neu berechnet werden.
+   * @param i der Index des Umsatzes.
+   * @return der Umsatz.
+   */
+  private static Umsatz umsatz(int i)
+  {
+    final Map<String,Object> values = new HashMap<String,Object>();
+    values.put("getTransactionId","TRANSFER-" + i);
+    values.put("getArt","TRANSFER");
+    values.put("getDatum",date(i));
+    values.put("getValuta",date(i));
+    values.put("getBetrag",amount(i).doubleValue());
+    values.put("getSaldo",0d);
+    values.put("getGegenkontoName","Empfaenger " + (i % 50));
+    values.put("getZweck","Zahlung " + i);
+    values.put("getZweck2",null);
+    values.put("getWeitereVerwendungszwecke",new String[0]);
+
+    final InvocationHandler handler = (proxy,method,args) -> {
+      switch (method.getName())
+      {
+        case "equals":
+          if (args[0] == null || !(args[0] instanceof Umsatz))
+            return false;
+          return checksum((Umsatz) proxy) == checksum((Umsatz) args[0]);
+        case "hashCode":
+          return Long.hashCode(checksum((Umsatz) proxy));
+        default:
+          return values.get(method.getName());
+      }
+    };
+    return (Umsatz) Proxy.newProxyInstance(Fixtures.class.getClassLoader(),new Class<?>[]{Umsatz.class},handler);
+  }
+
+  /**
+   * Berechnet die Pruefsumme des Umsatzes aus denselben Feldern wie UmsatzImpl#getChecksum() in Hibiscus.
+   * Nur Kontonummer und BLZ des eigenen Kontos fehlen, die Umsaetze der Fixtures haben kein Konto.
+   * @param u der Umsatz.
+   * @return die Pruefsumme.
+   * @throws RemoteException
+   */
+  private static long checksum(Umsatz u) throws RemoteException
+  {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.valueOf(u.getArt()).toUpperCase());
+    sb.append(u.getBetrag());
+    sb.append(u.getCustomerRef());
+    sb.append(u.getGegenkontoBLZ());
+    sb.append(u.getGegenkontoNummer());
+    sb.append(String.valueOf(u.getGegenkontoName()).toUpperCase());
+    sb.append(u.getPrimanota());
+    sb.append(u.getSaldo());
+    sb.append(CHECKSUM_DATEFORMAT.format(u.getDatum()));
+    sb.append(CHECKSUM_DATEFORMAT.format(u.getValuta()));
+    sb.append(u.getZweck());
+    sb.append(u.getZweck2());
+    final String[] more = u.getWeitereVerwendungszwecke();
+    if (more != null)
+    {
+      for (String s:more)
+      {
+        sb.append(s);
+      }
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(sb.toString().getBytes());
+    return crc.getValue();
+  }
+
+  /**
+   * Liefert das Datum der Buchung. Es gibt etwa 20 Buchungen pro Tag.
+   * @param i der Index der Buchung.
+   * @return das Datum.
+   */
+  private static Date date(int i)
+  {
+    final Calendar cal = Calendar.getInstance();
+    cal.clear();
+    cal.set(2020,Calendar.JANUARY,1,12,0,0);
+    cal.add(Calendar.MINUTE,i * 72);
+    return cal.getTime();
+  }
+
+  /**
+   * Liefert den Betrag der Buchung.
+   * @param i der Index der Buchung.
+   * @return der Betrag.
+   */
+  private static BigDecimal amount(int i)
+  {
+    final int cents = ((i * 7919) % 200000) - 100000;
+    return BigDecimal.valueOf(cents == 0 ? 1 : cents,2);
+  }
+}
@@ -0,0 +1,61 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.willuhn.jameica.hbci.transferwise.synchronize.MergeWindow;
+
+/**
+ * Misst die Berechnung des Zeitraumes fuer den Abgleich mit den existierenden Umsaetzen.
+ * Sowohl auf Basis der Markierung der letzten Synchronisierung als auch auf Basis des Saldo-Datums.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeWindowBenchmark
+{
+  private final Date startDate = new Date();
+
+  /**
+   * Berechnet den Zeitraum auf Basis der Markierung.
+   * @return der Beginn des Zeitraumes.
+   */
+  @Benchmark
+  public Date incremental()
+  {
+    return MergeWindow.getStart(this.startDate,true,-30);
+  }
+
+  /**
+   * Berechnet den Zeitraum auf Basis des Saldo-Datums.
+   * @return der Beginn des Zeitraumes.
+   */
+  @Benchmark
+  public Date full()
+  {
+    return MergeWindow.getStart(this.startDate,false,-30);
+  }
+}
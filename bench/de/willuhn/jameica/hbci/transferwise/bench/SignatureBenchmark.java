@@ -0,0 +1,77 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.willuhn.jameica.hbci.transferwise.TokenSigner;
+
+/**
+ * Misst das Signieren des SCA-Tokens per {@link TokenSigner}, das auch KeyStorage verwendet.
+ * KeyStorage selbst benoetigt das Wallet und den Plugin-Loader von Jameica. Daher wird das
+ * Schluesselpaar hier direkt erzeugt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SignatureBenchmark
+{
+  @Param({"2048","4096"})
+  private int keyLength;
+
+  private KeyPair keyPair = null;
+  private final String token = "0f7a0f12-0eba-4a4e-9f57-c0a1c3a7c5e4";
+
+  /**
+   * Erzeugt das Schluesselpaar.
+   * @throws Exception
+   */
+  @Setup
+  public void setup() throws Exception
+  {
+    if (Security.getProvider(TokenSigner.PROVIDER) == null)
+      Security.addProvider(new BouncyCastleProvider());
+
+    final KeyPairGenerator kp = KeyPairGenerator.getInstance("RSA",TokenSigner.PROVIDER);
+    kp.initialize(this.keyLength);
+    this.keyPair = kp.generateKeyPair();
+  }
+
+  /**
+   * Signiert den Token.
+   * @return die Signatur.
+   * @throws Exception
+   */
+  @Benchmark
+  public String sign() throws Exception
+  {
+    return TokenSigner.sign(this.keyPair.getPrivate(),this.token);
+  }
+}
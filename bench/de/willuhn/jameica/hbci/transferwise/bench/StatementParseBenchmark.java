@@ -0,0 +1,84 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.transport.StatementReader;
+
+/**
+ * Misst das Einlesen eines Kontoauszuges.
+ * Verglichen wird das Mappen des kompletten Dokumentes mit dem Lesen als Stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StatementParseBenchmark
+{
+  @Param({"1000","10000","100000"})
+  private int size;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final StatementReader reader = new StatementReader(mapper);
+  private byte[] json = null;
+
+  /**
+   * Erzeugt die Testdaten.
+   */
+  @Setup
+  public void setup()
+  {
+    this.json = Fixtures.statement(this.size);
+  }
+
+  /**
+   * Mappt das komplette Dokument.
+   * @return der Kontoauszug.
+   * @throws Exception
+   */
+  @Benchmark
+  public AccountStatement document() throws Exception
+  {
+    return this.mapper.readValue(this.json,AccountStatement.class);
+  }
+
+  /**
+   * Liest die Buchungen einzeln als Stream.
+   * @param bh Blackhole fuer die Buchungen.
+   * @return der Kontoauszug ohne Buchungen.
+   * @throws Exception
+   */
+  @Benchmark
+  public AccountStatement stream(Blackhole bh) throws Exception
+  {
+    return this.reader.read(new ByteArrayInputStream(this.json),bh::consume);
+  }
+}
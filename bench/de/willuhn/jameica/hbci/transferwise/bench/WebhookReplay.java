@@ -0,0 +1,170 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sendet aufgezeichnete Webhook-Benachrichtigungen an den lokalen Webhook-Empfang.
+ * Die Benachrichtigungen werden mit einem lokalen Test-Schluessel signiert. Existiert die
+ * Schluessel-Datei noch nicht, wird ein neues Schluesselpaar erzeugt und der oeffentliche
+ * Schluessel ausgegeben. Er muss dann in "webhook.publickey" hinterlegt werden.
+ *
+ * Aufruf: WebhookReplay [-url URL] [-key DATEI] [-dup N] [-burst N] DATEI|VERZEICHNIS...
+ * <ul>
+ *   <li>-dup N: Jede Benachrichtigung wird N mal mit derselben Delivery-ID gesendet.</li>
+ *   <li>-burst N: Jede Benachrichtigung wird N mal mit jeweils neuer Delivery-ID gesendet.</li>
+ * </ul>
+ */
+public class WebhookReplay
+{
+  /**
+   * Main-Methode.
+   * @param args die Parameter.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception
+  {
+    String url = "http://localhost:8090/webhook";
+    File keyFile = new File("webhook-replay.key");
+    int dup = 1;
+    int burst = 1;
+    final List<File> files = new ArrayList<File>();
+    
+    for (int i=0;i<args.length;++i)
+    {
+      final String a = args[i];
+      if ("-url".equals(a))
+        url = args[++i];
+      else if ("-key".equals(a))
+        keyFile = new File(args[++i]);
+      else if ("-dup".equals(a))
+        dup = Integer.parseInt(args[++i]);
+      else if ("-burst".equals(a))
+        burst = Integer.parseInt(args[++i]);
+      else
+        files.addAll(list(new File(a)));
+    }
+    
+    if (files.isEmpty())
+    {
+      System.err.println("usage: WebhookReplay [-url URL] [-key FILE] [-dup N] [-burst N] FILE|DIR...");
+      System.exit(1);
+    }
+    
+    final PrivateKey key = loadKey(keyFile);
+    for (File f:files)
+    {
+      final byte[] body = Files.readAllBytes(f.toPath());
+      for (int b=0;b<burst;++b)
+      {
+        final String id = UUID.randomUUID().toString();
+        for (int d=0;d<dup;++d)
+        {
+          final int status = send(url,key,body,id);
+          System.out.println(f.getName() + " [" + id + "]: HTTP " + status);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Liefert die Dateien. Verzeichnisse werden nach Namen sortiert aufgeloest.
+   * @param f die Datei oder das Verzeichnis.
+   * @return die Dateien.
+   */
+  private static List<File> list(File f)
+  {
+    if (!f.isDirectory())
+      return Arrays.asList(f);
+    
+    final File[] children = f.listFiles((dir,name) -> name.endsWith(".json"));
+    if (children == null)
+      return new ArrayList<File>();
+    
+    Arrays.sort(children);
+    return Arrays.asList(children);
+  }
+  
+  /**
+   * Laedt den privaten Schluessel oder erzeugt ein neues Schluesselpaar.
+   * @param file die Datei mit dem Base64-codierten privaten Schluessel.
+   * @return der private Schluessel.
+   * @throws Exception
+   */
+  private static PrivateKey loadKey(File file) throws Exception
+  {
+    if (file.exists())
+    {
+      final byte[] data = Base64.getMimeDecoder().decode(Files.readAllBytes(file.toPath()));
+      return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(data));
+    }
+    
+    final KeyPairGenerator kp = KeyPairGenerator.getInstance("RSA");
+    kp.initialize(2048);
+    final KeyPair pair = kp.generateKeyPair();
+    Files.write(file.toPath(),Base64.getEncoder().encode(pair.getPrivate().getEncoded()));
+    System.out.println("created test key " + file.getAbsolutePath() + ", public key for \"webhook.publickey\":");
+    System.out.println(Base64.getEncoder().encodeToString(pair.getPublic().getEncoded()));
+    return pair.getPrivate();
+  }
+  
+  /**
+   * Sendet eine Benachrichtigung.
+   * @param url die URL des Webhook-Empfangs.
+   * @param key der Schluessel fuer die Signatur.
+   * @param body der Inhalt.
+   * @param id die Delivery-ID.
+   * @return der HTTP-Status.
+   * @throws Exception
+   */
+  private static int send(String url, PrivateKey key, byte[] body, String id) throws Exception
+  {
+    final Signature sig = Signature.getInstance("SHA256withRSA");
+    sig.initSign(key);
+    sig.update(body);
+    
+    final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    try
+    {
+      conn.setRequestMethod("POST");
+      conn.setDoOutput(true);
+      conn.setRequestProperty("Content-Type","application/json; charset=" + StandardCharsets.UTF_8.name());
+      conn.setRequestProperty("X-Signature-SHA256",Base64.getEncoder().encodeToString(sig.sign()));
+      conn.setRequestProperty("X-Delivery-Id",id);
+      try (OutputStream os = conn.getOutputStream())
+      {
+        os.write(body);
+      }
+      return conn.getResponseCode();
+    }
+    finally
+    {
+      conn.disconnect();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise;
+
+import java.security.KeyPair;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Erzeugt die Schluesselpaare im Hintergrund.
+ * Die Erzeugung eines 4096-Bit-Schluessels dauert auf langsamen Rechnern mehrere Sekunden.
+ * Daher wird beim Oeffnen des Assistenten bereits ein Schluesselpaar auf Vorrat erzeugt,
+ * das bei der Erstellung dann sofort zur Verfuegung steht. Einen echten Fortschritt liefert
+ * die Erzeugung nicht. Er wird anhand der Dauer der letzten Erzeugung geschaetzt.
+ */
+public class KeyGenerator
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  private static ExecutorService executor = null;
+  
+  // Das auf Vorrat erzeugte Schluesselpaar, das noch nicht abgeholt wurde.
+  private static Generation spare = null;
+  
+  // Die Erzeugung, auf deren Ende gerade gewartet wird.
+  private static Generation active = null;
+  
+  /**
+   * Startet die Erzeugung eines Schluesselpaares auf Vorrat, falls noch keines existiert.
+   */
+  public static synchronized void prepare()
+  {
+    if (!settings.getBoolean("keys.pregenerate",true))
+      return;
+    
+    if (spare != null && !spare.isFailed())
+      return;
+    
+    Logger.info("pre-generating key pair in background");
+    spare = start();
+  }
+  
+  /**
+   * Liefert ein neues Schluesselpaar. Existiert eines auf Vorrat, wird dieses geliefert. Ist es
+   * noch in Arbeit, wird auf dessen Ende gewartet. Andernfalls, oder wenn die Erzeugung auf
+   * Vorrat fehlgeschlagen ist, wird ein neues erzeugt.
+   * @return das neue Schluesselpaar.
+   * @throws Exception
+   */
+  static KeyPair take() throws Exception
+  {
+    final Generation reserve;
+    synchronized (KeyGenerator.class)
+    {
+      reserve = spare;
+      spare = null;
+    }
+    
+    if (reserve != null)
+    {
+      try
+      {
+        return await(reserve);
+      }
+      catch (ExecutionException ee)
+      {
+        Logger.error("pre-generated key pair failed, generating a new one",ee.getCause());
+      }
+    }
+    
+    final Generation g;
+    synchronized (KeyGenerator.class)
+    {
+      g = start();
+    }
+    
+    try
+    {
+      return await(g);
+    }
+    catch (ExecutionException ee)
+    {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      throw ee;
+    }
+  }
+  
+  /**
+   * Wartet auf das Ende der Erzeugung.
+   * @param g die Erzeugung.
+   * @return das erzeugte Schluesselpaar.
+   * @throws ExecutionException wenn die Erzeugung fehlgeschlagen ist.
+   * @throws InterruptedException
+   */
+  private static KeyPair await(Generation g) throws ExecutionException, InterruptedException
+  {
+    synchronized (KeyGenerator.class)
+    {
+      active = g;
+    }
+    
+    try
+    {
+      return g.future.get();
+    }
+    finally
+    {
+      synchronized (KeyGenerator.class)
+      {
+        active = null;
+      }
+    }
+  }
+  
+  /**
+   * Liefert den geschaetzten Fortschritt der Erzeugung, auf die gerade gewartet wird.
+   * @return der Fortschritt in Prozent oder -1, wenn gerade auf keine Erzeugung gewartet wird
+   * oder noch keine Dauer einer vorherigen Erzeugung bekannt ist.
+   */
+  public static synchronized int getPercentComplete()
+  {
+    final Generation g = active;
+    if (g == null)
+      return -1;
+    
+    if (g.future.isDone())
+      return 100;
+    
+    final long estimate = settings.getInt("keys.generate.last.millis",0);
+    if (estimate <= 0)
+      return -1;
+    
+    // Die 100 erreichen wir erst, wenn das Schluesselpaar tatsaechlich fertig ist.
+    return (int) Math.min(99L,g.getElapsed() * 100L / estimate);
+  }
+  
+  /**
+   * Liefert die bisherige Dauer der Erzeugung, auf die gerade gewartet wird.
+   * @return die Dauer in Millisekunden.
+   */
+  public static synchronized long getElapsed()
+  {
+    final Generation g = active;
+    return g != null ? g.getElapsed() : 0L;
+  }
+  
+  /**
+   * Startet die Erzeugung eines Schluesselpaares.
+   * @return die Erzeugung.
+   */
+  private static Generation start()
+  {
+    if (executor == null)
+    {
+      executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r,"transferwise-keygen");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      });
+    }
+    
+    final Generation g = new Generation();
+    g.future = executor.submit(() -> {
+      g.started = System.currentTimeMillis();
+      final KeyPair kp = KeyStorage.generate();
+      final long took = System.currentTimeMillis() - g.started;
+      g.finished = System.currentTimeMillis();
+      settings.setAttribute("keys.generate.last.millis",(int) took);
+      Metrics.duration("key.generate",took * 1000000L);
+      Logger.info("key pair generated, took " + took + " millis");
+      return kp;
+    });
+    return g;
+  }
+  
+  /**
+   * Eine laufende oder abgeschlossene Erzeugung.
+   */
+  private static class Generation
+  {
+    private Future<KeyPair> future = null;
+    private volatile long started  = 0L;
+    private volatile long finished = 0L;
+    
+    /**
+     * Prueft, ob die Erzeugung bereits mit einem Fehler beendet wurde.
+     * @return true, wenn die Erzeugung fehlgeschlagen ist.
+     */
+    private boolean isFailed()
+    {
+      if (!this.future.isDone())
+        return false;
+      
+      try
+      {
+        this.future.get();
+        return false;
+      }
+      catch (Exception e)
+      {
+        return true;
+      }
+    }
+    
+    /**
+     * Liefert die bisherige Dauer der Erzeugung.
+     * @return die Dauer in Millisekunden. 0, wenn sie noch nicht begonnen hat.
+     */
+    private long getElapsed()
+    {
+      if (this.started == 0L)
+        return 0L;
+      return (this.finished != 0L ? this.finished : System.currentTimeMillis()) - this.started;
+    }
+  }
+}
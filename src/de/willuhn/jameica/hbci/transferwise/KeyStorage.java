@@ -13,14 +13,16 @@ package de.willuhn.jameica.hbci.transferwise;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
-import java.security.Signature;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
 import de.willuhn.jameica.security.Wallet;
 import de.willuhn.jameica.security.crypto.AESEngine;
 import de.willuhn.jameica.system.Application;
@@ -38,7 +40,6 @@ public class KeyStorage
   
   private final static String KEY_ALG  = "RSA";
   private final static int KEY_LENGTH  = 4096;
-  private final static String SIGN_ALG = "SHA256withRSA";
   private final static String PROVIDER = BouncyCastleProvider.PROVIDER_NAME;
   
   private final static String SUFFIX_PRIVATE = ".private";
@@ -46,6 +47,12 @@ public class KeyStorage
   
   private static Wallet wallet = null;
   
+  // Cache der bereits dekodierten Schluesselpaare. Key ist die ID des Kontos.
+  private final static Map<String,KeyPair> cache = new ConcurrentHashMap<String,KeyPair>();
+  
+  // Die Instanzen sind nicht thread-safe, lassen sich aber pro Thread wiederverwenden.
+  private final static ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>();
+  
   /**
    * Liefert das Wallet.
    * @return das Wallet.
@@ -58,6 +65,53 @@ public class KeyStorage
     return wallet;
   }
   
+  /**
+   * Liefert die Key-Factory des aktuellen Threads.
+   * @return die Key-Factory.
+   * @throws Exception
+   */
+  private static KeyFactory getKeyFactory() throws Exception
+  {
+    KeyFactory f = keyFactory.get();
+    if (f == null)
+    {
+      f = KeyFactory.getInstance(KEY_ALG,PROVIDER);
+      keyFactory.set(f);
+    }
+    return f;
+  }
+  
+  /**
+   * Prueft, ob fuer das Konto ein Schluesselpaar existiert.
+   * Die Schluessel werden hierbei nicht dekodiert.
+   * @param k das Konto.
+   * @return true, wenn ein Schluesselpaar existiert.
+   * @throws ApplicationException
+   */
+  public static boolean hasKey(Konto k) throws ApplicationException
+  {
+    try
+    {
+      checkAccount(k);
+      
+      final String id = k.getID();
+      if (cache.containsKey(id))
+        return true;
+      
+      return StringUtils.trimToNull((String) getWallet().get(id + SUFFIX_PRIVATE)) != null &&
+             StringUtils.trimToNull((String) getWallet().get(id + SUFFIX_PUBLIC)) != null;
+    }
+    catch (ApplicationException ae)
+    {
+      throw ae;
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to check key pair for account",e);
+      throw new ApplicationException(i18n.tr("Laden des Schlüssels fehlgeschlagen: {0}",e.getMessage()));
+    }
+  }
+  
   /**
    * Liefert das Schluesselpaar fuer das angegebene Konto.
    * @param k das Konto.
@@ -70,6 +124,10 @@ public class KeyStorage
     {
       checkAccount(k);
       
+      final KeyPair cached = cache.get(k.getID());
+      if (cached != null)
+        return cached;
+      
       final String priv = (String) getWallet().get(k.getID() + SUFFIX_PRIVATE);
       if (StringUtils.trimToNull(priv) == null)
         return null;
@@ -80,8 +138,10 @@ public class KeyStorage
         return null;
       final X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(Base64.decode(pub));
 
-      final KeyFactory keyFactory = KeyFactory.getInstance(KEY_ALG,PROVIDER);
-      return new KeyPair(keyFactory.generatePublic(pubSpec),keyFactory.generatePrivate(privSpec));
+      final KeyFactory f = getKeyFactory();
+      final KeyPair kp = new KeyPair(f.generatePublic(pubSpec),f.generatePrivate(privSpec));
+      cache.put(k.getID(),kp);
+      return kp;
     }
     catch (ApplicationException ae)
     {
@@ -90,7 +150,7 @@ public class KeyStorage
     catch (Exception e)
     {
       Logger.error("unable to read key pair for account",e);
-      throw new ApplicationException(i18n.tr("Laden des Schlssels fehlgeschlagen: {0}",e.getMessage()));
+      throw new ApplicationException(i18n.tr("Laden des Schlüssels fehlgeschlagen: {0}",e.getMessage()));
     }
   }
   
@@ -104,8 +164,10 @@ public class KeyStorage
     try
     {
       checkAccount(k);
+      cache.remove(k.getID());
       getWallet().delete(k.getID() + SUFFIX_PRIVATE);
       getWallet().delete(k.getID() + SUFFIX_PUBLIC);
+      SupportStatus.invalidate(k);
     }
     catch (ApplicationException ae)
     {
@@ -114,12 +176,25 @@ public class KeyStorage
     catch (Exception e)
     {
       Logger.error("unable to delete key pair for account",e);
-      throw new ApplicationException(i18n.tr("Lschen des Schlssels fehlgeschlagen: {0}",e.getMessage()));
+      throw new ApplicationException(i18n.tr("Löschen des Schlüssels fehlgeschlagen: {0}",e.getMessage()));
     }
   }
   
+  /**
+   * Erzeugt ein neues Schluesselpaar, ohne es zu speichern.
+   * @return das neue Schluesselpaar.
+   * @throws Exception
+   */
+  static KeyPair generate() throws Exception
+  {
+    final KeyPairGenerator kp = KeyPairGenerator.getInstance(KEY_ALG,PROVIDER);
+    kp.initialize(KEY_LENGTH); // Mindest-Anforderung seitens Transferwise sind 2048 Bit.
+    return kp.generateKeyPair();
+  }
+  
   /**
    * Erstellt einen neuen Schluessel fuer das Konto.
+   * Wurde per {@link KeyGenerator#prepare()} bereits ein Schluesselpaar auf Vorrat erzeugt, wird dieses verwendet.
    * Die Funktion speichert das Schluesselpaar auch gleich ab.
    * @param k das Konto.
    * @return der neue Schluessel.
@@ -130,11 +205,10 @@ public class KeyStorage
     try
     {
       checkAccount(k);
+      cache.remove(k.getID());
       long started = System.currentTimeMillis();
       Logger.info("creating new key pair for account [id: " + k.getID() + "]");
-      final KeyPairGenerator kp = KeyPairGenerator.getInstance(KEY_ALG,PROVIDER);
-      kp.initialize(KEY_LENGTH); // Mindest-Anforderung seitens Transferwise sind 2048 Bit.
-      final KeyPair keypair = kp.generateKeyPair();
+      final KeyPair keypair = KeyGenerator.take();
 
       // Private-Key speichern
       {
@@ -148,7 +222,10 @@ public class KeyStorage
         getWallet().set(k.getID() + SUFFIX_PUBLIC,Base64.encode(spec.getEncoded()));
       }
       
+      cache.put(k.getID(),keypair);
+      SupportStatus.invalidate(k);
       Logger.info("key pair created for account [id: " + k.getID() + "], took " + (System.currentTimeMillis() - started) + " millis");
+      Metrics.duration("key.create",(System.currentTimeMillis() - started) * 1000000L);
       return keypair;
     }
     catch (ApplicationException ae)
@@ -158,7 +235,7 @@ public class KeyStorage
     catch (Exception e)
     {
       Logger.error("unable to create  key pair for account",e);
-      throw new ApplicationException(i18n.tr("Erstellen des Schlssels fehlgeschlagen: {0}",e.getMessage()));
+      throw new ApplicationException(i18n.tr("Erstellen des Schlüssels fehlgeschlagen: {0}",e.getMessage()));
     }
   }
   
@@ -171,18 +248,25 @@ public class KeyStorage
    */
   public static String sign(Konto k, String token) throws ApplicationException
   {
-    final KeyPair kp = KeyStorage.getKey(k);
+    return sign(KeyStorage.getKey(k),token);
+  }
+  
+  /**
+   * Erzeugt die Signatur mit dem bereits geladenen Schluesselpaar.
+   * Greift nicht auf das Konto zu und kann daher aus beliebigen Threads aufgerufen werden.
+   * @param kp das Schluesselpaar. Kann NULL sein.
+   * @param token der zu signierende Token.
+   * @return die Signatur.
+   * @throws ApplicationException
+   */
+  public static String sign(KeyPair kp, String token) throws ApplicationException
+  {
     if (kp == null)
-      throw new ApplicationException(i18n.tr("Bitte erstellen Sie ein Schlsselpaar fr das TransferWise-Konto"));
+      throw new ApplicationException(i18n.tr("Bitte erstellen Sie ein Schlüsselpaar für das TransferWise-Konto"));
 
     try
     {
-      Signature sig = Signature.getInstance(SIGN_ALG, PROVIDER);
-      sig.initSign(kp.getPrivate());
-      sig.update(token.getBytes("UTF-8"));
-      
-      // Wir nehmen hier den base64-Encoder von Java und nicht unseren eignen, weil wir die Zeilenumbrueche nach 72 Zeichen nicht wollen.
-      return java.util.Base64.getEncoder().encodeToString(sig.sign());
+      return TokenSigner.sign(kp.getPrivate(),token);
     }
     catch (Exception e)
     {
@@ -199,11 +283,11 @@ public class KeyStorage
   private static void checkAccount(Konto k) throws Exception
   {
     if (k == null || StringUtils.trimToNull(k.getID()) == null)
-      throw new ApplicationException(i18n.tr("Kein Konto ausgewhlt"));
+      throw new ApplicationException(i18n.tr("Kein Konto ausgewählt"));
 
     // Checken, ob das Konto ein Transferwise-Konto ist.
     if (!Plugin.getStatus(k).checkInitial())
-      throw new ApplicationException(i18n.tr("Das Konto ist nicht fr Transferwise konfiguriert"));
+      throw new ApplicationException(i18n.tr("Das Konto ist nicht für Transferwise konfiguriert"));
   }
   
 }
@@ -48,6 +48,21 @@ public class Plugin extends AbstractPlugin
    */
   public final static String META_PARAM_ACCOUNT = "account.id";
   
+  /**
+   * Meta-Parameter mit dem Datum der neuesten gespeicherten Buchung in Millisekunden.
+   */
+  public final static String META_PARAM_WATERMARK_DATE = "sync.watermark.date";
+
+  /**
+   * Meta-Parameter mit der Referenznummer der neuesten gespeicherten Buchung.
+   */
+  public final static String META_PARAM_WATERMARK_REFERENCE = "sync.watermark.reference";
+  
+  /**
+   * Meta-Parameter mit dem Intervall in Minuten, in dem das Konto im Hintergrund abgerufen wird.
+   */
+  public final static String META_PARAM_POLL_INTERVAL = "poll.interval.minutes";
+  
   /**
    * Liefert den Support-Status des Kontos.
    * @param konto das zu pruefende Konto.
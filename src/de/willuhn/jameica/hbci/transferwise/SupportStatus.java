@@ -10,20 +10,40 @@
 
 package de.willuhn.jameica.hbci.transferwise;
 
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
 
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.hbci.transferwise.synchronize.TransferwiseSynchronizeBackend;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
 import de.willuhn.logging.Logger;
 
 /**
  * Fuehrt verschiedenste Pruefungen durch, um herauszufinden, inwiefern ein Konto alle Anforderungen fuer die
  * Nutzung via TransferWise erfuellt.
+ * Die Ergebnisse werden pro Konto-ID gecached, bis das Konto gespeichert oder geloescht wird,
+ * sich das Schluesselpaar aendert oder "status.cache.seconds" abgelaufen sind.
  */
 public class SupportStatus
 {
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  private final static Map<String,Result> cache = new ConcurrentHashMap<String,Result>();
+  
+  // Fingerprint der Konfiguration zum Zeitpunkt der letzten vollstaendig erfolgreichen Pruefung.
+  // Verfaellt im Gegensatz zum Cache nicht nach Zeit, sondern nur beim Invalidieren.
+  private final static Map<String,String> complete = new ConcurrentHashMap<String,String>();
+  
+  private final static String CHECK_BIC     = "bic";
+  private final static String CHECK_BACKEND = "backend";
+  private final static String CHECK_APIKEY  = "apikey";
+  private final static String CHECK_KEYPAIR = "keypair";
+
   private Konto konto = null;
 
   /**
@@ -35,6 +55,98 @@ public class SupportStatus
     this.konto = k;
   }
   
+  /**
+   * Verwirft die gecachten Ergebnisse des Kontos.
+   * @param k das Konto.
+   */
+  public static void invalidate(Konto k)
+  {
+    try
+    {
+      final String id = k != null ? k.getID() : null;
+      if (id != null)
+      {
+        cache.remove(id);
+        complete.remove(id);
+      }
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to invalidate support status, clearing all",e);
+      cache.clear();
+      complete.clear();
+    }
+  }
+  
+  /**
+   * Prueft, ob das Konto bereits vollstaendig konfiguriert war und sich die Konfiguration
+   * seither nicht geaendert hat. Die Funktion verwendet nur die Eigenschaften des Kontos
+   * und greift nicht auf das Schluesselpaar zu.
+   * @param k das Konto.
+   * @return true, wenn das Konto unveraendert vollstaendig konfiguriert ist.
+   */
+  public static boolean isComplete(Konto k)
+  {
+    try
+    {
+      final String id = k != null ? k.getID() : null;
+      if (id == null)
+        return false;
+      
+      final String fp = complete.get(id);
+      return fp != null && fp.equals(fingerprint(k));
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to check support status",e);
+      return false;
+    }
+  }
+  
+  /**
+   * Erzeugt einen Fingerprint der fuer die Pruefung relevanten Eigenschaften des Kontos.
+   * Der API-Key geht nur als Hash ein.
+   * @param k das Konto.
+   * @return der Fingerprint.
+   * @throws Exception
+   */
+  private static String fingerprint(Konto k) throws Exception
+  {
+    return StringUtils.trimToEmpty(k.getBic()) + "|" +
+           StringUtils.trimToEmpty(k.getBackendClass()) + "|" +
+           Objects.hashCode(StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_APIKEY,null)));
+  }
+  
+  /**
+   * Liefert das gecachte Ergebnis einer Pruefung bzw. fuehrt sie aus.
+   * Konten ohne ID werden nicht gecached.
+   * @param name der Name der Pruefung.
+   * @param check die Pruefung.
+   * @return das Ergebnis der Pruefung.
+   * @throws Exception
+   */
+  private boolean get(String name, Callable<Boolean> check) throws Exception
+  {
+    final String id = this.konto.getID();
+    if (id == null)
+      return check.call().booleanValue();
+    
+    Result r = cache.get(id);
+    if (r == null || r.isExpired())
+    {
+      r = new Result();
+      cache.put(id,r);
+    }
+    
+    final Boolean cached = r.checks.get(name);
+    if (cached != null)
+      return cached.booleanValue();
+    
+    final Boolean b = check.call();
+    r.checks.put(name,b);
+    return b.booleanValue();
+  }
+  
   /**
    * Liefert das zugehoerige Konto.
    * @return das zugehoerige Konto.
@@ -52,12 +164,14 @@ public class SupportStatus
   {
     try
     {
-      String bic = StringUtils.trimToNull(this.konto.getBic());
-      if (bic == null)
-        return false;
-      
-      bic = bic.replace(" ","");
-      return bic.equalsIgnoreCase(Plugin.BIC_TRANSFERWISE);
+      return this.get(CHECK_BIC,() -> {
+        String bic = StringUtils.trimToNull(this.konto.getBic());
+        if (bic == null)
+          return false;
+        
+        bic = bic.replace(" ","");
+        return bic.equalsIgnoreCase(Plugin.BIC_TRANSFERWISE);
+      });
     }
     catch (Exception e)
     {
@@ -74,8 +188,10 @@ public class SupportStatus
   {
     try
     {
-      final String backend = StringUtils.trimToNull(this.konto.getBackendClass());
-      return Objects.equals(backend,TransferwiseSynchronizeBackend.class.getName());
+      return this.get(CHECK_BACKEND,() -> {
+        final String backend = StringUtils.trimToNull(this.konto.getBackendClass());
+        return Objects.equals(backend,TransferwiseSynchronizeBackend.class.getName());
+      });
     }
     catch (Exception e)
     {
@@ -92,7 +208,7 @@ public class SupportStatus
   {
     try
     {
-      return StringUtils.trimToNull(this.konto.getMeta(Plugin.META_PARAM_APIKEY,null)) != null;
+      return this.get(CHECK_APIKEY,() -> StringUtils.trimToNull(this.konto.getMeta(Plugin.META_PARAM_APIKEY,null)) != null);
     }
     catch (Exception e)
     {
@@ -109,7 +225,7 @@ public class SupportStatus
   {
     try
     {
-      return KeyStorage.getKey(this.konto) != null;
+      return this.get(CHECK_KEYPAIR,() -> KeyStorage.hasKey(this.konto));
     }
     catch (Exception e)
     {
@@ -124,10 +240,24 @@ public class SupportStatus
    */
   public boolean checkAll()
   {
-    return this.checkBic() && 
-           this.checkBackend() &&
-           this.checkApiKey() &&
-           this.checkKeyPair();
+    final boolean b = this.checkBic() && 
+                      this.checkBackend() &&
+                      this.checkApiKey() &&
+                      this.checkKeyPair();
+    if (b)
+    {
+      try
+      {
+        final String id = this.konto.getID();
+        if (id != null)
+          complete.put(id,fingerprint(this.konto));
+      }
+      catch (Exception e)
+      {
+        Logger.error("unable to remember support status",e);
+      }
+    }
+    return b;
   }
 
   /**
@@ -148,5 +278,23 @@ public class SupportStatus
   {
     return this.checkBackend();
   }
+  
+  /**
+   * Die gecachten Ergebnisse eines Kontos.
+   */
+  private static class Result
+  {
+    private final Map<String,Boolean> checks = new ConcurrentHashMap<String,Boolean>();
+    private final long expires = System.currentTimeMillis() + settings.getInt("status.cache.seconds",60) * 1000L;
+    
+    /**
+     * Prueft, ob die Ergebnisse abgelaufen sind.
+     * @return true, wenn sie abgelaufen sind.
+     */
+    private boolean isExpired()
+    {
+      return System.currentTimeMillis() > this.expires;
+    }
+  }
 
 }
@@ -0,0 +1,70 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise;
+
+import java.security.PrivateKey;
+import java.security.Signature;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Signiert den SCA-Token.
+ * Greift weder auf Jameica noch auf das Wallet zu und kann daher auch ausserhalb
+ * von Jameica verwendet werden, z.Bsp. in den Benchmarks.
+ */
+public class TokenSigner
+{
+  /**
+   * Der Signatur-Algorithmus.
+   */
+  public final static String SIGN_ALG = "SHA256withRSA";
+  
+  /**
+   * Der Security-Provider.
+   */
+  public final static String PROVIDER = BouncyCastleProvider.PROVIDER_NAME;
+  
+  // Die Instanz ist nicht thread-safe, laesst sich aber pro Thread wiederverwenden.
+  private final static ThreadLocal<Signature> signature = new ThreadLocal<Signature>();
+  
+  /**
+   * Liefert die Signatur-Instanz des aktuellen Threads.
+   * @return die Signatur-Instanz.
+   * @throws Exception
+   */
+  private static Signature getSignature() throws Exception
+  {
+    Signature s = signature.get();
+    if (s == null)
+    {
+      s = Signature.getInstance(SIGN_ALG,PROVIDER);
+      signature.set(s);
+    }
+    return s;
+  }
+  
+  /**
+   * Erzeugt die Signatur.
+   * @param key der private Schluessel.
+   * @param token der zu signierende Token.
+   * @return die Base64-codierte Signatur.
+   * @throws Exception
+   */
+  public static String sign(PrivateKey key, String token) throws Exception
+  {
+    final Signature sig = getSignature();
+    sig.initSign(key);
+    sig.update(token.getBytes("UTF-8"));
+    
+    // Wir nehmen hier den base64-Encoder von Java und nicht unseren eignen, weil wir die Zeilenumbrueche nach 72 Zeichen nicht wollen.
+    return java.util.Base64.getEncoder().encodeToString(sig.sign());
+  }
+}
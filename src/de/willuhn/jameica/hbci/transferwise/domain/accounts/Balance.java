@@ -12,6 +12,8 @@ package de.willuhn.jameica.hbci.transferwise.domain.accounts;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Amount;
+
 /**
  * JSON-Mapping.
  */
@@ -20,7 +22,7 @@ public class Balance
 {
 
   /**
-   * Die Whrung.
+   * Die Währung.
    */
   public String currency;
   
@@ -28,6 +30,11 @@ public class Balance
    * Die Bank-Details.
    */
   public BankDetails bankDetails;
+  
+  /**
+   * Der aktuelle Saldo.
+   */
+  public Amount amount;
 
 }
 
@@ -69,7 +69,7 @@ public enum TransactionDetailsType
   DIRECT_DEBIT,
   
   /**
-   * Abrechnungsgebhr.
+   * Abrechnungsgebühr.
    */
   ACCRUAL_CHARGE
 }
@@ -0,0 +1,37 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.domain.webhooks;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * JSON-Mapping.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class WebhookData
+{
+  /**
+   * Die betroffene Ressource.
+   */
+  public WebhookResource resource;
+  
+  /**
+   * Die Waehrung.
+   */
+  public String currency;
+  
+  /**
+   * Art der Buchung. Zum Beispiel "credit".
+   */
+  @JsonProperty("transaction_type")
+  public String transactionType;
+}
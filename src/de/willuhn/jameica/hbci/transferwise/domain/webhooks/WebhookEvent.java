@@ -0,0 +1,44 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.domain.webhooks;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * JSON-Mapping.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class WebhookEvent
+{
+  /**
+   * Art des Ereignisses. Zum Beispiel "balances#credit".
+   */
+  @JsonProperty("event_type")
+  public String eventType;
+  
+  /**
+   * Version des Formats.
+   */
+  @JsonProperty("schema_version")
+  public String schemaVersion;
+  
+  /**
+   * ID des Abonnements.
+   */
+  @JsonProperty("subscription_id")
+  public String subscriptionId;
+  
+  /**
+   * Die Daten des Ereignisses.
+   */
+  public WebhookData data;
+}
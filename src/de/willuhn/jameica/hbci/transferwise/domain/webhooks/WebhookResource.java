@@ -0,0 +1,37 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.domain.webhooks;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * JSON-Mapping.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class WebhookResource
+{
+  /**
+   * Typ der Ressource.
+   */
+  public String type;
+  
+  /**
+   * ID der Ressource. Bei Salden die ID des Accounts.
+   */
+  public Long id;
+  
+  /**
+   * ID des Profils.
+   */
+  @JsonProperty("profile_id")
+  public Long profileId;
+}
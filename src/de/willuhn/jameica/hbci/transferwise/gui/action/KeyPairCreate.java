@@ -16,6 +16,7 @@ import de.willuhn.jameica.gui.Action;
 import de.willuhn.jameica.gui.dialogs.BackgroundTaskDialog;
 import de.willuhn.jameica.gui.util.SWTUtil;
 import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.KeyGenerator;
 import de.willuhn.jameica.hbci.transferwise.KeyStorage;
 import de.willuhn.jameica.hbci.transferwise.Plugin;
 import de.willuhn.jameica.system.Application;
@@ -41,14 +42,21 @@ public class KeyPairCreate implements Action
   public void handleAction(Object context) throws ApplicationException
   {
     if (!(context instanceof Konto))
-      throw new ApplicationException(i18n.tr("Bitte whlen Sie ein Konto aus."));
+      throw new ApplicationException(i18n.tr("Bitte wählen Sie ein Konto aus."));
     
     final Konto konto = (Konto) context;
     
     BackgroundTask task = new BackgroundTask() {
       public void run(ProgressMonitor monitor) throws ApplicationException
       {
-        // Wir starten den Progress in einem extra Thread
+        kp = KeyStorage.getKey(konto); // Fuer den Fall, dass der User einen Schluessel erstellt aber nicht abgespeichert hat.
+        if (kp != null)
+        {
+          monitor.setPercentComplete(100);
+          return;
+        }
+        
+        // Der Fortschritt wird in einem extra Thread anhand der tatsaechlichen Dauer der Erzeugung angezeigt
         final Thread progress = new Thread()
         {
           /**
@@ -57,12 +65,15 @@ public class KeyPairCreate implements Action
           @Override
           public void run()
           {
-            for (int i=0;i<100;++i)
+            while (!this.isInterrupted())
             {
               try
               {
-                Thread.sleep(20L);
-                monitor.addPercentComplete(1);
+                Thread.sleep(200L);
+                final int percent = KeyGenerator.getPercentComplete();
+                if (percent >= 0)
+                  monitor.setPercentComplete(percent);
+                monitor.setStatusText(i18n.tr("Erstelle Schlüsselpaar, bisher {0} Sekunden",Long.toString(KeyGenerator.getElapsed() / 1000L)));
               }
               catch (InterruptedException e)
               {
@@ -71,13 +82,19 @@ public class KeyPairCreate implements Action
             }
           }
         };
+        progress.setDaemon(true);
         progress.start();
         
-        kp = KeyStorage.getKey(konto); // Fuer den Fall, dass der User einen Schluessel erstellt aber nicht abgespeichert hat.
-        if (kp == null)
+        try
+        {
+          final long started = System.currentTimeMillis();
           kp = KeyStorage.createKey(konto);
-        
-        progress.interrupt();
+          monitor.setStatusText(i18n.tr("Schlüsselpaar erstellt in {0} Sekunden",Long.toString((System.currentTimeMillis() - started) / 1000L)));
+        }
+        finally
+        {
+          progress.interrupt();
+        }
         monitor.setPercentComplete(100);
       }
       public boolean isInterrupted()
@@ -92,9 +109,9 @@ public class KeyPairCreate implements Action
     try
     {
       BackgroundTaskDialog bd = new BackgroundTaskDialog(BackgroundTaskDialog.POSITION_CENTER,task);
-      bd.setTitle(i18n.tr("Schlsselerstellung"));
+      bd.setTitle(i18n.tr("Schlüsselerstellung"));
       bd.setSideImage(SWTUtil.getImage("dialog-password.png"));
-      bd.setPanelText(i18n.tr("Erstelle neues Schlsselpaar"));
+      bd.setPanelText(i18n.tr("Erstelle neues Schlüsselpaar"));
       bd.open();
       
       new PublicKeySave().handleAction(kp.getPublic());
@@ -108,7 +125,7 @@ public class KeyPairCreate implements Action
     }
     catch (Exception e)
     {
-      throw new ApplicationException(i18n.tr("Erstellung des Schlsselpaares fehlgeschlagen: {0}",e.getMessage()));
+      throw new ApplicationException(i18n.tr("Erstellung des Schlüsselpaares fehlgeschlagen: {0}",e.getMessage()));
     }
   }
 
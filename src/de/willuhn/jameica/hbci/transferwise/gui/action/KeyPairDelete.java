@@ -33,11 +33,11 @@ public class KeyPairDelete implements Action
   public void handleAction(Object context) throws ApplicationException
   {
     if (!(context instanceof Konto))
-      throw new ApplicationException(i18n.tr("Bitte whlen Sie ein Konto aus."));
+      throw new ApplicationException(i18n.tr("Bitte wählen Sie ein Konto aus."));
     
     try
     {
-      if (!Application.getCallback().askUser(i18n.tr("Sind Sie sicher, dass Sie den Schlssel lschen wollen?"),false))
+      if (!Application.getCallback().askUser(i18n.tr("Sind Sie sicher, dass Sie den Schlüssel löschen wollen?"),false))
         return;
       
       KeyStorage.deleteKey((Konto) context);
@@ -51,7 +51,7 @@ public class KeyPairDelete implements Action
     }
     catch (Exception e)
     {
-      throw new ApplicationException(i18n.tr("Lschen des Schlsselpaares fehlgeschlagen: {0}",e.getMessage()));
+      throw new ApplicationException(i18n.tr("Löschen des Schlüsselpaares fehlgeschlagen: {0}",e.getMessage()));
     }
   }
 
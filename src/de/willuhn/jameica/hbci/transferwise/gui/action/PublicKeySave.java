@@ -57,11 +57,11 @@ public class PublicKeySave implements Action
     }
 
     if (key == null)
-      throw new ApplicationException(i18n.tr("Bitte whlen Sie den zu speichernden Schlssel aus."));
+      throw new ApplicationException(i18n.tr("Bitte wählen Sie den zu speichernden Schlüssel aus."));
 
     // Schluessel serialisieren
     FileDialog d = new FileDialog(GUI.getShell(),SWT.SAVE);
-    d.setText(Application.getI18n().tr("Bitte whlen den Ordner aus, in dem Sie den Schlssel speichern mchten."));
+    d.setText(Application.getI18n().tr("Bitte wählen den Ordner aus, in dem Sie den Schlüssel speichern möchten."));
     d.setFilterExtensions(new String[]{"*.pem"});
     d.setFileName("transferwise-pubkey.pem");
     d.setOverwrite(true);
@@ -81,7 +81,7 @@ public class PublicKeySave implements Action
     catch (IOException e)
     {
       Logger.error("unable to save key",e);
-      throw new ApplicationException(i18n.tr("Speichern des Schlssels fehlgeschlagen: {0}",e.getMessage()));
+      throw new ApplicationException(i18n.tr("Speichern des Schlüssels fehlgeschlagen: {0}",e.getMessage()));
     }
     finally
     {
@@ -40,7 +40,7 @@ public class SetupTransferWiseStep1 implements Action
       status = Plugin.getStatus((Konto) context);
     
     if (status == null)
-      throw new ApplicationException(i18n.tr("Bitte whlen Sie ein Konto aus"));
+      throw new ApplicationException(i18n.tr("Bitte wählen Sie ein Konto aus"));
 
     GUI.startView(de.willuhn.jameica.hbci.transferwise.gui.views.SetupTransferWiseStep1.class,status);
   }
@@ -32,7 +32,7 @@ public class SetupTransferWiseStep2 implements Action
   public void handleAction(Object context) throws ApplicationException
   {
     if (!(context instanceof SupportStatus))
-      throw new ApplicationException(i18n.tr("Bitte whlen Sie ein Konto aus"));
+      throw new ApplicationException(i18n.tr("Bitte wählen Sie ein Konto aus"));
 
     GUI.startView(de.willuhn.jameica.hbci.transferwise.gui.views.SetupTransferWiseStep2.class,context);
   }
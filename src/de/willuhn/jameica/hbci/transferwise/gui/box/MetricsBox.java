@@ -0,0 +1,75 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.gui.box;
+
+import java.rmi.RemoteException;
+
+import org.eclipse.swt.widgets.Composite;
+
+import de.willuhn.jameica.gui.boxes.AbstractBox;
+import de.willuhn.jameica.gui.parts.TablePart;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.util.I18N;
+
+/**
+ * Box, die die Messwerte von Transport und Synchronisierung anzeigt.
+ */
+public class MetricsBox extends AbstractBox
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  
+  /**
+   * @see de.willuhn.jameica.gui.boxes.Box#getName()
+   */
+  @Override
+  public String getName()
+  {
+    return i18n.tr("TransferWise: Messwerte");
+  }
+
+  /**
+   * @see de.willuhn.jameica.gui.boxes.Box#getDefaultEnabled()
+   */
+  @Override
+  public boolean getDefaultEnabled()
+  {
+    return false;
+  }
+
+  /**
+   * @see de.willuhn.jameica.gui.boxes.Box#getDefaultIndex()
+   */
+  @Override
+  public int getDefaultIndex()
+  {
+    return 1;
+  }
+
+  /**
+   * @see de.willuhn.jameica.gui.Part#paint(org.eclipse.swt.widgets.Composite)
+   */
+  @Override
+  public void paint(Composite parent) throws RemoteException
+  {
+    final TablePart table = new TablePart(Metrics.getValues(),null);
+    table.addColumn(i18n.tr("Messwert"),"name");
+    table.addColumn(i18n.tr("Anzahl"),"count");
+    table.addColumn(i18n.tr("Durchschnitt"),"average");
+    table.addColumn(i18n.tr("50%"),"p50");
+    table.addColumn(i18n.tr("95%"),"p95");
+    table.addColumn(i18n.tr("Maximum"),"max");
+    table.addColumn(i18n.tr("Summe"),"sum");
+    table.setRememberColWidths(true);
+    table.paint(parent);
+  }
+}
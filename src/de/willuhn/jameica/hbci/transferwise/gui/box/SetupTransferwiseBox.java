@@ -82,8 +82,8 @@ public class SetupTransferwiseBox extends AbstractBox
     InfoPanel panel = new InfoPanel();
     panel.setIcon("transferwise-large.png");
     panel.setTitle(i18n.tr("TransferWise-Konto konfigurieren"));
-    panel.setText(i18n.tr("Das Konto mit der IBAN \"{0}\" ist noch nicht vollstndig konfiguriert.\n" +
-                          "Klicken Sie auf \"Konto einrichten\", um die Konfiguration zu abzuschlieen.\n\n" +
+    panel.setText(i18n.tr("Das Konto mit der IBAN \"{0}\" ist noch nicht vollständig konfiguriert.\n" +
+                          "Klicken Sie auf \"Konto einrichten\", um die Konfiguration zu abzuschließen.\n\n" +
                           "Im Wiki finden Sie weitere Informationen zur Einrichtung eines TransferWise-Kontos.",status.getKonto().getIban()));
     panel.setUrl("https://www.willuhn.de/wiki/doku.php?id=support:hibiscus.transferwise");
 
@@ -112,7 +112,7 @@ public class ProfileSelectDialog extends AbstractDialog<UserProfile>
     if (this.apply != null)
       return this.apply;
     
-    this.apply = new Button(i18n.tr("bernehmen"), new Action() {
+    this.apply = new Button(i18n.tr("Übernehmen"), new Action() {
       public void handleAction(Object context) throws ApplicationException
       {
         doApply();
@@ -129,7 +129,7 @@ public class ProfileSelectDialog extends AbstractDialog<UserProfile>
   protected void paint(Composite parent) throws Exception
   {
     Container c = new SimpleContainer(parent,true);
-    c.addText(i18n.tr("Bitte whlen Sie das zu verwendende Benutzerprofil aus."),true);
+    c.addText(i18n.tr("Bitte wählen Sie das zu verwendende Benutzerprofil aus."),true);
     c.addPart(this.getTable());
     
     
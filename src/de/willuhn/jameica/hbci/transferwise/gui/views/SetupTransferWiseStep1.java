@@ -19,6 +19,7 @@ import de.willuhn.jameica.gui.parts.InfoPanel;
 import de.willuhn.jameica.gui.util.Container;
 import de.willuhn.jameica.gui.util.SimpleContainer;
 import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.KeyGenerator;
 import de.willuhn.jameica.hbci.transferwise.Plugin;
 import de.willuhn.jameica.hbci.transferwise.SupportStatus;
 import de.willuhn.jameica.hbci.transferwise.gui.action.SetupTransferWiseStep2;
@@ -40,6 +41,10 @@ public class SetupTransferWiseStep1 extends AbstractSetupTransferWise
 
     final SupportStatus status = (SupportStatus) this.getCurrentObject();
     final Konto k = status.getKonto();
+    
+    // Das Schluesselpaar fuer Schritt 3 erzeugen wir schon mal im Hintergrund
+    if (!status.checkKeyPair())
+      KeyGenerator.prepare();
 
     final Container c = new SimpleContainer(this.getParent(),false,1);
 
@@ -67,6 +72,7 @@ public class SetupTransferWiseStep1 extends AbstractSetupTransferWise
     {
       k.setBic(Plugin.BIC_TRANSFERWISE);
       k.store();
+      SupportStatus.invalidate(k);
       final String text = i18n.tr("Die BIC des Kontos wurde korrigiert auf \"{0}\".",Plugin.BIC_TRANSFERWISE);
       Application.getMessagingFactory().sendMessage(new StatusBarMessage(text, StatusBarMessage.TYPE_SUCCESS));
       info.setText(text);
@@ -75,7 +81,7 @@ public class SetupTransferWiseStep1 extends AbstractSetupTransferWise
     {
       info.setText(i18n.tr("Die BIC des Kontos ist korrekt."));
     }
-    info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nFr die Prfung des API-Key klicken Sie bitte auf \"Weiter\".",k.getIban()));
+    info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nFür die Prüfung des API-Key klicken Sie bitte auf \"Weiter\".",k.getIban()));
     
     info.addButton(new Button(i18n.tr("Weiter"),new SetupTransferWiseStep2(),status,false,"go-next.png"));
     c.addPart(info);
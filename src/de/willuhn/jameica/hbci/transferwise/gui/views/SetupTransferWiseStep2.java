@@ -123,16 +123,16 @@ public class SetupTransferWiseStep2 extends AbstractSetupTransferWise
     if (!status.checkApiKey())
     {
       info.setText(i18n.tr("Folgen Sie bitte den Anweisungen auf der Webseite, um einen neuen API-Key zu erstellen.\n" +
-                           "Geben Sie den API-Key anschlieend hier ein."));
+                           "Geben Sie den API-Key anschließend hier ein."));
       info.setUrl("https://www.willuhn.de/wiki/doku.php?id=support:hibiscus.transferwise");
       b.setEnabled(false);
     }
     else
     {
       info.setText(i18n.tr("Der API-Key des Kontos ist korrekt konfiguriert.\n" +
-                           "Prfen Sie bitte ggf. die Korrektheit des API-Keys."));
+                           "Prüfen Sie bitte ggf. die Korrektheit des API-Keys."));
     }
-    info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nSie knnen den API-Key spter jederzeit in den Synchronisierungsoptionen des Kontos ndern.\nFr die Prfung des Schlsselpaares klicken Sie bitte auf \"Weiter\".",this.konto.getIban()));
+    info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nSie können den API-Key später jederzeit in den Synchronisierungsoptionen des Kontos ändern.\nFür die Prüfung des Schlüsselpaares klicken Sie bitte auf \"Weiter\".",this.konto.getIban()));
     
     info.addButton(b);
     c.addPart(info);
@@ -202,6 +202,7 @@ public class SetupTransferWiseStep2 extends AbstractSetupTransferWise
           {
             String current = konto.getMeta(Plugin.META_PARAM_APIKEY,null);
             konto.setMeta(Plugin.META_PARAM_APIKEY,s);
+            SupportStatus.invalidate(konto);
             if (!Objects.equals(s,current))
               Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("API-Key gespeichert"),StatusBarMessage.TYPE_SUCCESS));
           }
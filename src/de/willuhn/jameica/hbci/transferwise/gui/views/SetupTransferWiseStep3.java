@@ -27,6 +27,7 @@ import de.willuhn.jameica.gui.util.Container;
 import de.willuhn.jameica.gui.util.SWTUtil;
 import de.willuhn.jameica.gui.util.SimpleContainer;
 import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.KeyGenerator;
 import de.willuhn.jameica.hbci.transferwise.SupportStatus;
 import de.willuhn.jameica.hbci.transferwise.gui.action.KeyPairCreate;
 import de.willuhn.jameica.hbci.transferwise.gui.action.KeyPairDelete;
@@ -95,11 +96,15 @@ public class SetupTransferWiseStep3 extends AbstractSetupTransferWise
   @Override
   public void bind() throws Exception
   {
-    GUI.getView().setTitle(i18n.tr("TransferWise-Konto - Schritt 3 von 3: Schlsselpaar"));
+    GUI.getView().setTitle(i18n.tr("TransferWise-Konto - Schritt 3 von 3: Schlüsselpaar"));
 
     this.status = (SupportStatus) this.getCurrentObject();
     this.konto = status.getKonto();
     final boolean haveKey = this.status.checkKeyPair();
+    
+    // Falls in Schritt 1 noch keines vorbereitet wurde, z.B. weil der Schluessel inzwischen geloescht wurde
+    if (!haveKey)
+      KeyGenerator.prepare();
 
     final Container c = new SimpleContainer(this.getParent());
 
@@ -163,23 +168,23 @@ public class SetupTransferWiseStep3 extends AbstractSetupTransferWise
         
       }
     };
-    info.setTitle(i18n.tr("Schritt 3 von 3: Schlsselpaar"));
+    info.setTitle(i18n.tr("Schritt 3 von 3: Schlüsselpaar"));
     info.setIcon("transferwise-large.png");
     
     final Button b = this.getNext();
     
     if (haveKey)
     {
-      info.setText(i18n.tr("Das Schlsselpaar des Kontos ist korrekt konfiguriert.\n" +
-                           "Sie knnen den Schlssel speichern oder lschen und anschlieend einen neuen erzeugen."));
+      info.setText(i18n.tr("Das Schlüsselpaar des Kontos ist korrekt konfiguriert.\n" +
+                           "Sie können den Schlüssel speichern oder löschen und anschließend einen neuen erzeugen."));
       info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nKlicken Sie bitte auf \"Fertigstellen\", um den Assistenten zu beenden.",konto.getIban()));
     }
     else
     {
-      info.setText(i18n.tr("Klicken Sie bitte auf die Schaltflche \"Neues Schlsselpaar erstellen...\", um einen neuen Schlssel zu erzeugen.\n" +
-                           "Speichern Sie die erstellte Schlsseldatei ab und folgen Sie anschlieend den Anweisungen auf der Webseite, um den neuen Schlssel hochzuladen."));
+      info.setText(i18n.tr("Klicken Sie bitte auf die Schaltfläche \"Neues Schlüsselpaar erstellen...\", um einen neuen Schlüssel zu erzeugen.\n" +
+                           "Speichern Sie die erstellte Schlüsseldatei ab und folgen Sie anschließend den Anweisungen auf der Webseite, um den neuen Schlüssel hochzuladen."));
       info.setUrl("https://www.willuhn.de/wiki/doku.php?id=support:hibiscus.transferwise#schritt_4schluesselpaar_hochladen");
-      info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nKlicken Sie bitte anschlieend auf \"Fertigstellen\", um den Assistenten zu beenden.",konto.getIban()));
+      info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\nKlicken Sie bitte anschließend auf \"Fertigstellen\", um den Assistenten zu beenden.",konto.getIban()));
       b.setEnabled(false);
     }
     
@@ -212,7 +217,7 @@ public class SetupTransferWiseStep3 extends AbstractSetupTransferWise
     if (this.delete != null)
       return this.delete;
     
-    this.delete = new Button(i18n.tr("Schlssel lschen..."),new Action() {
+    this.delete = new Button(i18n.tr("Schlüssel löschen..."),new Action() {
       @Override
       public void handleAction(Object context) throws ApplicationException
       {
@@ -234,7 +239,7 @@ public class SetupTransferWiseStep3 extends AbstractSetupTransferWise
     if (this.save != null)
       return this.save;
     
-    this.save = new Button(i18n.tr("Schlssel speichern..."),new Action() {
+    this.save = new Button(i18n.tr("Schlüssel speichern..."),new Action() {
       @Override
       public void handleAction(Object context) throws ApplicationException
       {
@@ -254,7 +259,7 @@ public class SetupTransferWiseStep3 extends AbstractSetupTransferWise
     if (this.create != null)
       return this.create;
     
-    this.create = new Button(i18n.tr("Neues Schlsselpaar erstellen..."),new Action() {
+    this.create = new Button(i18n.tr("Neues Schlüsselpaar erstellen..."),new Action() {
       @Override
       public void handleAction(Object context) throws ApplicationException
       {
@@ -115,18 +115,18 @@ public class SetupTransferWiseStep4 extends AbstractSetupTransferWise
     };
     info.setTitle(i18n.tr("Einrichtung abgeschlossen"));
     info.setIcon("transferwise-large.png");
-    info.setText(i18n.tr("Sie knnen nun den Saldo und die Umstze des Kontos abrufen oder die Synchonisierungsoptionen anpassen.\n" +
-                         "Folgen Sie bitte den Anweisungen auf der Webseite, um die neue Schlsseldatei hochzuladen."));
+    info.setText(i18n.tr("Sie können nun den Saldo und die Umsätze des Kontos abrufen oder die Synchonisierungsoptionen anpassen.\n" +
+                         "Folgen Sie bitte den Anweisungen auf der Webseite, um die neue Schlüsseldatei hochzuladen."));
     info.setComment(i18n.tr("IBAN des Kontos: {0}.\n\n" +
-                            "Sie knnen diesen Assistenten spter jederzeit erneut starten, indem Sie mit der rechten Maustaste\n" +
-                            "auf das Konto klicken und im Kontextmen die Option \"TransferWise-Einrichtung starten...\" whlen.",konto.getIban()));
+                            "Sie können diesen Assistenten später jederzeit erneut starten, indem Sie mit der rechten Maustaste\n" +
+                            "auf das Konto klicken und im Kontextmenü die Option \"TransferWise-Einrichtung starten...\" wählen.",konto.getIban()));
     info.setUrl("https://www.willuhn.de/wiki/doku.php?id=support:hibiscus.transferwise#schritt_4schluesselpaar_hochladen");
     
     c.addPart(info);
 
     NotificationPanel panel = new NotificationPanel();
     c.addPart(panel);
-    panel.setText(Type.INFO,i18n.tr("Vergessen Sie nicht, die Schlsseldatei auf der TransferWise-Webseite hochzuladen."));
+    panel.setText(Type.INFO,i18n.tr("Vergessen Sie nicht, die Schlüsseldatei auf der TransferWise-Webseite hochzuladen."));
     
     Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("TransferWise-Konto erfolgreich eingerichtet"),StatusBarMessage.TYPE_SUCCESS));
   }
@@ -140,7 +140,7 @@ public class SetupTransferWiseStep4 extends AbstractSetupTransferWise
     if (this.sync != null)
       return this.sync;
 
-    this.sync = new Button(i18n.tr("Saldo und Umstze abrufen"), new KontoFetchUmsaetze(),konto,false,"mail-send-receive.png");
+    this.sync = new Button(i18n.tr("Saldo und Umsätze abrufen"), new KontoFetchUmsaetze(),konto,false,"mail-send-receive.png");
     return this.sync;
   }
 
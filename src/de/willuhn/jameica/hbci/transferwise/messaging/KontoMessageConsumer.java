@@ -11,6 +11,9 @@
 package de.willuhn.jameica.hbci.transferwise.messaging;
 
 import de.willuhn.datasource.GenericObject;
+import de.willuhn.jameica.hbci.messaging.ObjectChangedMessage;
+import de.willuhn.jameica.hbci.messaging.ObjectDeletedMessage;
+import de.willuhn.jameica.hbci.messaging.ObjectMessage;
 import de.willuhn.jameica.hbci.messaging.SaldoMessage;
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.hbci.transferwise.Plugin;
@@ -23,6 +26,7 @@ import de.willuhn.util.I18N;
 
 /**
  * Wird benachrichtigt, wenn ein Konto gespeichert wird und prueft, ob der TransferWise-Wizzard gestartet werden muss.
+ * Ausserdem wird beim Speichern und Loeschen eines Kontos der gecachte {@link SupportStatus} verworfen.
  */
 public class KontoMessageConsumer implements MessageConsumer
 {
@@ -34,7 +38,7 @@ public class KontoMessageConsumer implements MessageConsumer
   @Override
   public Class[] getExpectedMessageTypes()
   {
-    return new Class[]{SaldoMessage.class};
+    return new Class[]{SaldoMessage.class,ObjectChangedMessage.class,ObjectDeletedMessage.class};
   }
 
   /**
@@ -46,12 +50,27 @@ public class KontoMessageConsumer implements MessageConsumer
     // Im Prinzip koennten wir auf eine ObjectChangedMessage hoeren. Beim Speichern eines Kontos in KontoControl
     // wurde bisher aber keine solche gesendet. Habe ich gerade erst eingefuegt. Da beim Speichern aber eine
     // SaldoMessage gesendet wird, nehmen wir erstmal die. Das hat den selben Effekt.
-    final SaldoMessage m = (SaldoMessage) message;
+    final ObjectMessage m = (ObjectMessage) message;
     GenericObject ctx = m.getObject();
     if (!(ctx instanceof Konto))
       return;
     
+    // Die Saldo-Messages unserer eigenen Synchronisierung aendern nichts an der Konfiguration.
+    if (message instanceof SyncSaldoMessage)
+      return;
+    
     final Konto k = (Konto) ctx;
+    
+    // War das Konto bereits vollstaendig konfiguriert und hat sich an der Konfiguration
+    // nichts geaendert, brauchen wir nicht erneut pruefen.
+    if (!(message instanceof ObjectDeletedMessage) && SupportStatus.isComplete(k))
+      return;
+    
+    SupportStatus.invalidate(k);
+    
+    if (!(message instanceof SaldoMessage))
+      return;
+    
     final SupportStatus status = Plugin.getStatus(k);
     
     // Ist es ein Transferwise-Konto?
@@ -62,8 +81,8 @@ public class KontoMessageConsumer implements MessageConsumer
     if (status.checkAll())
       return;
 
-    final String text = "Das Konto ist noch nicht vollstndig fr die Nutzung mit TransferWise konfiguriert.\n\n" +
-                        "Mchten Sie den Assistenten zur Einrichtung des Kontos jetzt starten?";
+    final String text = "Das Konto ist noch nicht vollständig für die Nutzung mit TransferWise konfiguriert.\n\n" +
+                        "Möchten Sie den Assistenten zur Einrichtung des Kontos jetzt starten?";
 
     if (!Application.getCallback().askUser(i18n.tr(text)))
       return;
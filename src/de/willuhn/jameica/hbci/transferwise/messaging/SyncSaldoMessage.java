@@ -0,0 +1,31 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.messaging;
+
+import de.willuhn.datasource.GenericObject;
+import de.willuhn.jameica.hbci.messaging.SaldoMessage;
+
+/**
+ * Saldo-Message, die von der Synchronisierung des Plugins selbst gesendet wird.
+ * Fuer Hibiscus ist es eine normale {@link SaldoMessage}. Der {@link KontoMessageConsumer}
+ * kann sie jedoch ignorieren, da sich die Konfiguration des Kontos hierbei nicht aendert.
+ */
+public class SyncSaldoMessage extends SaldoMessage
+{
+  /**
+   * ct.
+   * @param o das Konto.
+   */
+  public SyncSaldoMessage(GenericObject o)
+  {
+    super(o);
+  }
+}
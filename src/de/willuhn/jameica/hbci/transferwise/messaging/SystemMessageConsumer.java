@@ -0,0 +1,92 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.messaging;
+
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.hbci.transferwise.synchronize.PollScheduler;
+import de.willuhn.jameica.hbci.transferwise.synchronize.WarmUp;
+import de.willuhn.jameica.hbci.transferwise.synchronize.WebhookReceiver;
+import de.willuhn.jameica.messaging.Message;
+import de.willuhn.jameica.messaging.MessageConsumer;
+import de.willuhn.jameica.messaging.SystemMessage;
+import de.willuhn.jameica.services.BeanService;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Startet nach dem Start von Jameica das Logging der Messwerte sowie das Vorwaermen, den Abruf
+ * der Konten im Hintergrund und den Empfang der Webhooks, falls sie aktiviert sind.
+ * Funktioniert auch im Server-Mode.
+ */
+public class SystemMessageConsumer implements MessageConsumer
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+
+  /**
+   * @see de.willuhn.jameica.messaging.MessageConsumer#getExpectedMessageTypes()
+   */
+  @Override
+  public Class[] getExpectedMessageTypes()
+  {
+    return new Class[]{SystemMessage.class};
+  }
+
+  /**
+   * @see de.willuhn.jameica.messaging.MessageConsumer#handleMessage(de.willuhn.jameica.messaging.Message)
+   */
+  @Override
+  public void handleMessage(Message message) throws Exception
+  {
+    final SystemMessage m = (SystemMessage) message;
+    if (m.getStatusCode() == SystemMessage.SYSTEM_SHUTDOWN)
+    {
+      Metrics.stop();
+      return;
+    }
+    
+    if (m.getStatusCode() != SystemMessage.SYSTEM_STARTED)
+      return;
+    
+    Metrics.start();
+    
+    final BeanService service = Application.getBootLoader().getBootable(BeanService.class);
+    if (settings.getBoolean("warmup.enabled",false))
+      service.get(WarmUp.class).start();
+    
+    if (settings.getBoolean("poll.enabled",false))
+      service.get(PollScheduler.class).start();
+    
+    if (settings.getBoolean("webhook.enabled",false))
+    {
+      try
+      {
+        service.get(WebhookReceiver.class).start();
+      }
+      catch (ApplicationException ae)
+      {
+        Logger.error("unable to start webhook receiver: " + ae.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @see de.willuhn.jameica.messaging.MessageConsumer#autoRegister()
+   */
+  @Override
+  public boolean autoRegister()
+  {
+    return true;
+  }
+
+}
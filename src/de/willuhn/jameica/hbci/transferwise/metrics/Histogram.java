@@ -0,0 +1,174 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramm mit festen Bucket-Grenzen.
+ * Die Werte werden nicht einzeln gespeichert. Die Perzentile sind daher die Obergrenze des Buckets,
+ * in dem das Perzentil liegt, bzw. das Maximum, falls dieses kleiner ist.
+ */
+public class Histogram
+{
+  private final Unit unit;
+  private final long[] bounds;
+  private final AtomicLongArray buckets;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum   = new LongAdder();
+  private final AtomicLong max  = new AtomicLong();
+  
+  /**
+   * Die Einheit der Werte.
+   */
+  public enum Unit
+  {
+    /**
+     * Mikrosekunden.
+     */
+    MICROS(new long[]{10,50,100,500,1000,2000,5000,10000,20000,50000,100000,200000,500000,1000000,2000000,5000000,10000000,30000000,60000000}),
+    
+    /**
+     * Bytes.
+     */
+    BYTES(new long[]{1024,4096,16384,65536,262144,1048576,4194304,16777216,67108864}),
+    
+    ;
+    
+    private final long[] bounds;
+    
+    /**
+     * ct.
+     * @param bounds die Bucket-Grenzen.
+     */
+    private Unit(long[] bounds)
+    {
+      this.bounds = bounds;
+    }
+    
+    /**
+     * Formatiert den Wert fuer die Anzeige.
+     * @param value der Wert.
+     * @return der formatierte Wert.
+     */
+    public String format(double value)
+    {
+      if (this == MICROS)
+        return String.format("%.1fms",value / 1000d);
+      
+      if (value >= 1048576d)
+        return String.format("%.1fMB",value / 1048576d);
+      if (value >= 1024d)
+        return String.format("%.1fKB",value / 1024d);
+      return String.format("%.0fB",value);
+    }
+  }
+  
+  /**
+   * ct.
+   * @param unit die Einheit der Werte.
+   */
+  public Histogram(Unit unit)
+  {
+    this.unit    = unit;
+    this.bounds  = unit.bounds;
+    this.buckets = new AtomicLongArray(this.bounds.length + 1);
+  }
+  
+  /**
+   * Erfasst einen Wert.
+   * @param value der Wert.
+   */
+  public void record(long value)
+  {
+    if (value < 0)
+      value = 0;
+    
+    int i = 0;
+    while (i < this.bounds.length && value > this.bounds[i])
+      i++;
+    
+    this.buckets.incrementAndGet(i);
+    this.count.increment();
+    this.sum.add(value);
+    this.max.accumulateAndGet(value,Math::max);
+  }
+  
+  /**
+   * Liefert die Einheit der Werte.
+   * @return die Einheit der Werte.
+   */
+  public Unit getUnit()
+  {
+    return this.unit;
+  }
+  
+  /**
+   * Liefert die Anzahl der Werte.
+   * @return die Anzahl der Werte.
+   */
+  public long getCount()
+  {
+    return this.count.sum();
+  }
+  
+  /**
+   * Liefert die Summe der Werte.
+   * @return die Summe der Werte.
+   */
+  public long getSum()
+  {
+    return this.sum.sum();
+  }
+  
+  /**
+   * Liefert den groessten Wert.
+   * @return der groesste Wert.
+   */
+  public long getMax()
+  {
+    return this.max.get();
+  }
+  
+  /**
+   * Liefert den Durchschnitt.
+   * @return der Durchschnitt.
+   */
+  public double getAverage()
+  {
+    final long c = this.getCount();
+    return c > 0 ? (double) this.getSum() / c : 0d;
+  }
+  
+  /**
+   * Liefert das Perzentil.
+   * @param p das Perzentil zwischen 0 und 1.
+   * @return die Obergrenze des Buckets, in dem das Perzentil liegt.
+   */
+  public long getPercentile(double p)
+  {
+    final long c = this.getCount();
+    if (c == 0)
+      return 0L;
+    
+    final long rank = (long) Math.ceil(p * c);
+    long seen = 0;
+    for (int i=0;i<this.buckets.length();++i)
+    {
+      seen += this.buckets.get(i);
+      if (seen >= rank)
+        return i < this.bounds.length ? Math.min(this.bounds[i],this.getMax()) : this.getMax();
+    }
+    return this.getMax();
+  }
+}
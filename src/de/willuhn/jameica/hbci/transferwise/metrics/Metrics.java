@@ -0,0 +1,300 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Sammelt Laufzeiten, Datenmengen und Zaehler von Transport und Synchronisierung.
+ * Die Namen sind hierarchisch aufgebaut, z.B. "http.request[/v1/profiles]". Die Werte
+ * koennen in der Box "TransferWise: Messwerte" angezeigt und periodisch ins Log geschrieben werden.
+ */
+public class Metrics
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  private final static Map<String,Histogram> histograms = new ConcurrentSkipListMap<String,Histogram>();
+  private final static Map<String,LongAdder> counters   = new ConcurrentSkipListMap<String,LongAdder>();
+  
+  private static ScheduledExecutorService timer = null;
+  private static long lastLogged = -1L;
+  
+  /**
+   * Erfasst die seit dem Start vergangene Zeit.
+   * @param name der Name.
+   * @param started Startzeit per {@link System#nanoTime()}.
+   */
+  public static void time(String name, long started)
+  {
+    record(name,Histogram.Unit.MICROS,(System.nanoTime() - started) / 1000L);
+  }
+  
+  /**
+   * Erfasst eine Dauer.
+   * @param name der Name.
+   * @param nanos die Dauer in Nanosekunden.
+   */
+  public static void duration(String name, long nanos)
+  {
+    record(name,Histogram.Unit.MICROS,nanos / 1000L);
+  }
+  
+  /**
+   * Erfasst eine Datenmenge.
+   * @param name der Name.
+   * @param bytes die Anzahl der Bytes.
+   */
+  public static void bytes(String name, long bytes)
+  {
+    record(name,Histogram.Unit.BYTES,bytes);
+  }
+  
+  /**
+   * Erhoeht den Zaehler um 1.
+   * @param name der Name.
+   */
+  public static void count(String name)
+  {
+    count(name,1L);
+  }
+  
+  /**
+   * Erhoeht den Zaehler.
+   * @param name der Name.
+   * @param delta der Wert, um den erhoeht wird.
+   */
+  public static void count(String name, long delta)
+  {
+    counters.computeIfAbsent(name,n -> new LongAdder()).add(delta);
+  }
+  
+  /**
+   * Erfasst einen Wert im Histogramm.
+   * @param name der Name.
+   * @param unit die Einheit.
+   * @param value der Wert.
+   */
+  private static void record(String name, Histogram.Unit unit, long value)
+  {
+    histograms.computeIfAbsent(name,n -> new Histogram(unit)).record(value);
+  }
+  
+  /**
+   * Liefert eine Momentaufnahme aller Messwerte, sortiert nach Namen.
+   * @return die Messwerte.
+   */
+  public static List<Value> getValues()
+  {
+    final List<Value> result = new ArrayList<Value>();
+    for (Entry<String,Histogram> e:histograms.entrySet())
+    {
+      result.add(new Value(e.getKey(),e.getValue()));
+    }
+    for (Entry<String,LongAdder> e:counters.entrySet())
+    {
+      result.add(new Value(e.getKey(),e.getValue().sum()));
+    }
+    return result;
+  }
+  
+  /**
+   * Setzt alle Messwerte zurueck.
+   */
+  public static void reset()
+  {
+    histograms.clear();
+    counters.clear();
+  }
+  
+  /**
+   * Startet das periodische Schreiben der Messwerte ins Log.
+   * Das Intervall wird in "metrics.log.seconds" festgelegt. Bei 0 wird nichts geschrieben.
+   */
+  public static synchronized void start()
+  {
+    final int seconds = settings.getInt("metrics.log.seconds",300);
+    if (timer != null || seconds <= 0)
+      return;
+    
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r,"transferwise-metrics");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.scheduleWithFixedDelay(Metrics::log,seconds,seconds,TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Beendet das periodische Schreiben der Messwerte.
+   */
+  public static synchronized void stop()
+  {
+    if (timer == null)
+      return;
+    
+    timer.shutdownNow();
+    timer = null;
+  }
+  
+  /**
+   * Schreibt die Messwerte als eine Zeile ins Log, sofern es seit dem letzten Mal neue gibt.
+   */
+  private static void log()
+  {
+    long total = 0;
+    for (Histogram h:histograms.values())
+      total += h.getCount();
+    for (LongAdder a:counters.values())
+      total += a.sum();
+    
+    if (total == lastLogged)
+      return;
+    
+    lastLogged = total;
+    Logger.info("metrics " + format());
+  }
+  
+  /**
+   * Formatiert alle Messwerte als eine Zeile mit Schluessel-Wert-Paaren.
+   * @return die formatierten Messwerte.
+   */
+  public static String format()
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (Value v:getValues())
+    {
+      if (sb.length() > 0)
+        sb.append(' ');
+      sb.append(v.getName()).append('{');
+      sb.append("count=").append(v.getCount());
+      if (v.histogram != null)
+      {
+        sb.append(",avg=").append(v.getAverage());
+        sb.append(",p50=").append(v.getP50());
+        sb.append(",p95=").append(v.getP95());
+        sb.append(",max=").append(v.getMax());
+        sb.append(",sum=").append(v.getSum());
+      }
+      sb.append('}');
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Ein einzelner Messwert fuer die Anzeige.
+   */
+  public static class Value
+  {
+    private final String name;
+    private final Histogram histogram;
+    private final long count;
+    
+    /**
+     * ct.
+     * @param name der Name.
+     * @param histogram das Histogramm.
+     */
+    private Value(String name, Histogram histogram)
+    {
+      this.name      = name;
+      this.histogram = histogram;
+      this.count     = histogram.getCount();
+    }
+    
+    /**
+     * ct.
+     * @param name der Name.
+     * @param count der Zaehlerstand.
+     */
+    private Value(String name, long count)
+    {
+      this.name      = name;
+      this.histogram = null;
+      this.count     = count;
+    }
+    
+    /**
+     * Liefert den Namen.
+     * @return der Name.
+     */
+    public String getName()
+    {
+      return this.name;
+    }
+    
+    /**
+     * Liefert die Anzahl der Werte bzw. den Zaehlerstand.
+     * @return die Anzahl.
+     */
+    public long getCount()
+    {
+      return this.count;
+    }
+    
+    /**
+     * Liefert den formatierten Durchschnitt.
+     * @return der Durchschnitt oder NULL bei Zaehlern.
+     */
+    public String getAverage()
+    {
+      return this.histogram != null ? this.histogram.getUnit().format(this.histogram.getAverage()) : null;
+    }
+    
+    /**
+     * Liefert das formatierte 50%-Perzentil.
+     * @return das Perzentil oder NULL bei Zaehlern.
+     */
+    public String getP50()
+    {
+      return this.histogram != null ? this.histogram.getUnit().format(this.histogram.getPercentile(0.5d)) : null;
+    }
+    
+    /**
+     * Liefert das formatierte 95%-Perzentil.
+     * @return das Perzentil oder NULL bei Zaehlern.
+     */
+    public String getP95()
+    {
+      return this.histogram != null ? this.histogram.getUnit().format(this.histogram.getPercentile(0.95d)) : null;
+    }
+    
+    /**
+     * Liefert das formatierte Maximum.
+     * @return das Maximum oder NULL bei Zaehlern.
+     */
+    public String getMax()
+    {
+      return this.histogram != null ? this.histogram.getUnit().format(this.histogram.getMax()) : null;
+    }
+    
+    /**
+     * Liefert die formatierte Summe.
+     * @return die Summe oder NULL bei Zaehlern.
+     */
+    public String getSum()
+    {
+      return this.histogram != null ? this.histogram.getUnit().format(this.histogram.getSum()) : null;
+    }
+  }
+}
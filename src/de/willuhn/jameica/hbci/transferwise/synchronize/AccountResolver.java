@@ -0,0 +1,170 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.Objects;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Account;
+import de.willuhn.jameica.hbci.transferwise.transport.AccountMatcher;
+import de.willuhn.jameica.hbci.transferwise.transport.TransportService;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Ermittelt Zugangsdaten, Profil und Account eines Kontos und speichert Profil und Account am Konto.
+ * Die Abrufe beim Server erfolgen ohne Lock. Alle Zugriffe auf die Datenbank erfolgen ueber
+ * {@link TransferwiseSynchronizeBackend#DB_LOCK}.
+ */
+class AccountResolver
+{
+  private final TransportService service;
+  private final Konto konto;
+  private final TransportService.Credentials credentials;
+
+  /**
+   * ct.
+   * @param service der Transport-Service.
+   * @param konto das Konto.
+   * @throws ApplicationException
+   */
+  AccountResolver(TransportService service, Konto konto) throws ApplicationException
+  {
+    this.service = service;
+    this.konto   = konto;
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      this.credentials = service.getCredentials(konto);
+    }
+  }
+
+  /**
+   * Liefert die Zugangsdaten des Kontos.
+   * @return die Zugangsdaten des Kontos.
+   */
+  TransportService.Credentials getCredentials()
+  {
+    return this.credentials;
+  }
+
+  /**
+   * Liefert das zu verwendende Profil.
+   * Hat der User fuer das Konto noch keines ausgewaehlt, wird es ermittelt und am Konto gespeichert.
+   * @return das zu verwendende Profil.
+   * @throws Exception
+   */
+  String getProfile() throws Exception
+  {
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      final String profile = StringUtils.trimToNull(this.konto.getMeta(Plugin.META_PARAM_PROFILE,null));
+      if (profile != null)
+        return profile;
+    }
+
+    final String profile = this.service.getProfile(this.credentials);
+    if (profile != null)
+    {
+      Logger.info("saving profile id " + profile + " for account id " + this.konto.getID());
+      synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+      {
+        this.konto.setMeta(Plugin.META_PARAM_PROFILE,profile);
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * Liefert den zu verwendenden Account.
+   * Ist er noch nicht bekannt, werden gleich alle Konten mit demselben API-Key zugeordnet.
+   * @return der zu verwendende Account.
+   * @throws Exception
+   */
+  String getAccount() throws Exception
+  {
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      final String account = StringUtils.trimToNull(this.konto.getMeta(Plugin.META_PARAM_ACCOUNT,null));
+      if (account != null)
+        return account;
+    }
+
+    final String profile = this.getProfile();
+    final Account[] result = this.service.getAccounts(this.credentials,profile);
+    if (result == null)
+      return null;
+
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      this.assign(result,profile);
+      final String account = StringUtils.trimToNull(this.konto.getMeta(Plugin.META_PARAM_ACCOUNT,null));
+      if (account == null)
+        Logger.warn("unable to determine account");
+      return account;
+    }
+  }
+
+  /**
+   * Ordnet allen Konten mit demselben API-Key und Profil wie das Konto ihren Account zu.
+   * Die Accounts werden hierfuer ueber die IBANs aller Waehrungen indiziert.
+   * Konten, fuer die bereits ein anderes Profil hinterlegt ist, werden nicht beruecksichtigt.
+   * Konten ohne Profil erhalten bei einem Treffer auch das Profil.
+   * Der Aufrufer haelt den Datenbank-Lock.
+   * @param accounts die Accounts des Profils.
+   * @param profile das Profil.
+   * @throws RemoteException
+   */
+  private void assign(Account[] accounts, String profile) throws RemoteException
+  {
+    final AccountMatcher matcher = new AccountMatcher(accounts);
+    Logger.info("indexed " + matcher.size() + " IBANs of " + accounts.length + " accounts");
+
+    final String apiKey = StringUtils.trimToNull(this.konto.getMeta(Plugin.META_PARAM_APIKEY,null));
+    int count = 0;
+    int unmatched = 0;
+
+    final DBIterator<Konto> list = de.willuhn.jameica.hbci.Settings.getDBService().createList(Konto.class);
+    while (list.hasNext())
+    {
+      final Konto k = list.next();
+      if (!Objects.equals(apiKey,StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_APIKEY,null))))
+        continue;
+
+      final String p = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_PROFILE,null));
+      if (p != null && !p.equals(profile))
+        continue;
+
+      final AccountMatcher.Match m = matcher.get(k.getIban());
+      if (m == null)
+      {
+        Logger.warn("no account found for konto id " + k.getID() + " [" + k.getLongName() + "]");
+        unmatched++;
+        continue;
+      }
+
+      if (m.id.equals(k.getMeta(Plugin.META_PARAM_ACCOUNT,null)))
+        continue;
+
+      Logger.info("saving account id " + m.id + " (currency " + m.currency + ") for konto id " + k.getID());
+      if (p == null)
+        k.setMeta(Plugin.META_PARAM_PROFILE,profile);
+      k.setMeta(Plugin.META_PARAM_ACCOUNT,m.id);
+      count++;
+    }
+
+    Logger.info("assigned " + count + " konten, " + unmatched + " without matching account");
+  }
+}
@@ -0,0 +1,49 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import de.willuhn.jameica.util.DateUtil;
+
+/**
+ * Berechnet den Beginn des Zeitraumes, in dem die neuen Buchungen mit den existierenden
+ * Umsaetzen abgeglichen werden.
+ */
+public class MergeWindow
+{
+  /**
+   * Liefert den Beginn des Zeitraumes.
+   * @param startDate das von uns gesendete Startdatum.
+   * @param incremental true, wenn das Startdatum aus der Markierung der letzten Synchronisierung stammt.
+   * In dem Fall enthaelt es bereits die Ueberlappung von hoechstens einem Tag und es wird nur auf
+   * den Tagesbeginn gerundet, da die Umsaetze in der Datenbank keine Uhrzeit haben. Das Zeitfenster
+   * von Hibiscus wird dann nicht verwendet, sonst wuerden bei jedem Abruf die Umsaetze eines ganzen
+   * Monats geladen.
+   * @param offset die Anzahl der Tage, um die der Zeitraum andernfalls vor dem Startdatum beginnt.
+   * Negative Werte, wie in "umsatz.mergewindow.offset" von Hibiscus.
+   * @return der Beginn des Zeitraumes. NULL, wenn kein Startdatum angegeben ist.
+   */
+  public static Date getStart(Date startDate, boolean incremental, int offset)
+  {
+    if (startDate == null)
+      return null;
+
+    if (incremental)
+      return DateUtil.startOfDay(startDate);
+
+    final Calendar cal = Calendar.getInstance();
+    cal.setTime(startDate);
+    cal.add(Calendar.DATE,offset);
+    return cal.getTime();
+  }
+}
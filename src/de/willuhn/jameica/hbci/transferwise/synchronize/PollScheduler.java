@@ -0,0 +1,264 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.jameica.hbci.SynchronizeOptions;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Ruft Saldo und neue Umsaetze der Transferwise-Konten im Hintergrund ab, ohne die komplette
+ * Synchronisierung zu starten. Das Intervall kann pro Konto im Meta-Parameter
+ * {@link Plugin#META_PARAM_POLL_INTERVAL} hinterlegt werden. Ohne Angabe gilt "poll.interval.minutes"
+ * aus den Einstellungen des Plugins. Ist kein Intervall konfiguriert, wird das Konto nicht abgerufen.
+ * Die Startzeitpunkte werden zufaellig verteilt. Laeuft der Abruf eines Kontos noch, wird es
+ * uebersprungen. Waehrend einer regulaeren Synchronisierung ruht der Abruf.
+ */
+@Lifecycle(Type.CONTEXT)
+public class PollScheduler
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+  
+  @Resource private TransferwiseSynchronizeBackend backend;
+  
+  private final Map<String,PollState> states = new ConcurrentHashMap<String,PollState>();
+  private ScheduledExecutorService timer = null;
+  private ExecutorService executor = null;
+  
+  /**
+   * Startet den Abruf im Hintergrund.
+   */
+  public synchronized void start()
+  {
+    if (this.timer != null)
+      return;
+    
+    final int tick    = Math.max(1,settings.getInt("poll.tick.seconds",30));
+    final int threads = Math.max(1,settings.getInt("poll.threads",2));
+    
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r,"transferwise-poll-timer");
+      t.setDaemon(true);
+      return t;
+    });
+    this.executor = Executors.newFixedThreadPool(threads,r -> {
+      final Thread t = new Thread(r,"transferwise-poll-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    this.timer.scheduleWithFixedDelay(this::tick,tick,tick,TimeUnit.SECONDS);
+    Logger.info("started transferwise polling, checking every " + tick + " seconds using " + threads + " threads");
+  }
+  
+  /**
+   * Beendet den Abruf im Hintergrund.
+   */
+  @PreDestroy
+  public synchronized void stop()
+  {
+    if (this.timer == null)
+      return;
+    
+    Logger.info("stopping transferwise polling");
+    this.timer.shutdownNow();
+    this.executor.shutdownNow();
+    this.timer = null;
+    this.executor = null;
+    this.states.clear();
+  }
+  
+  /**
+   * Prueft, welche Konten faellig sind und startet deren Abruf.
+   */
+  private void tick()
+  {
+    try
+    {
+      if (this.backend.isRunning())
+      {
+        Logger.debug("synchronization in progress, skipping poll");
+        return;
+      }
+      
+      final long now = System.currentTimeMillis();
+      final Set<String> seen = new HashSet<String>();
+      
+      // Die laufenden Abrufe greifen parallel auf die Datenbank zu
+      synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+      {
+        final DBIterator<Konto> list = de.willuhn.jameica.hbci.Settings.getDBService().createList(Konto.class);
+        while (list.hasNext())
+        {
+          final Konto k = list.next();
+          final long interval = this.getInterval(k);
+          if (interval <= 0)
+            continue;
+        
+          final String id = k.getID();
+          seen.add(id);
+        
+          // Der erste Abruf erfolgt zu einem zufaelligen Zeitpunkt innerhalb des Intervalls
+          final PollState state = this.states.computeIfAbsent(id,i -> new PollState(now + ThreadLocalRandom.current().nextLong(interval)));
+          state.interval = interval;
+        
+          if (now < state.next || !state.running.compareAndSet(false,true))
+            continue;
+        
+          this.submit(k,id,state);
+        }
+      }
+      
+      // Konten, die nicht mehr abgerufen werden sollen, vergessen wir.
+      this.states.keySet().retainAll(seen);
+    }
+    catch (Throwable t)
+    {
+      // Darf nicht nach oben fliegen, sonst wird der Timer beendet
+      Logger.error("error while polling transferwise accounts",t);
+    }
+  }
+  
+  /**
+   * Startet den Abruf des Kontos im Thread-Pool.
+   * @param k das Konto.
+   * @param id die ID des Kontos.
+   * @param state der Zustand des Kontos.
+   */
+  private synchronized void submit(Konto k, String id, PollState state)
+  {
+    if (this.executor == null)
+    {
+      state.running.set(false);
+      return;
+    }
+    this.executor.submit(() -> this.poll(k,id,state));
+  }
+  
+  /**
+   * Ruft das Konto ab und plant den naechsten Abruf.
+   * @param k das Konto.
+   * @param id die ID des Kontos.
+   * @param state der Zustand des Kontos.
+   */
+  private void poll(Konto k, String id, PollState state)
+  {
+    try
+    {
+      if (this.backend.isRunning())
+        return;
+      
+      Logger.info("polling konto id " + id);
+      this.backend.executeKonto(k,false);
+    }
+    catch (ApplicationException ae)
+    {
+      Logger.warn("polling of konto id " + id + " failed: " + ae.getMessage());
+    }
+    catch (OperationCanceledException oce)
+    {
+      Logger.info("polling of konto id " + id + " cancelled");
+    }
+    catch (Exception e)
+    {
+      Logger.error("polling of konto id " + id + " failed",e);
+    }
+    finally
+    {
+      // Ueberlappende Faelligkeiten werden damit zu einem Abruf zusammengefasst.
+      final long jitter = state.interval * Math.max(0,settings.getInt("poll.jitter.percent",10)) / 100L;
+      state.next = System.currentTimeMillis() + state.interval + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter,jitter + 1) : 0L);
+      state.running.set(false);
+    }
+  }
+  
+  /**
+   * Liefert das Intervall, in dem das Konto abgerufen werden soll.
+   * Es werden nur vollstaendig eingerichtete Konten beruecksichtigt, fuer die Profil und
+   * Account bereits bekannt sind. Im Hintergrund sollen keine Dialoge erscheinen.
+   * @param k das Konto.
+   * @return das Intervall in Millisekunden oder 0, wenn das Konto nicht abgerufen werden soll.
+   * @throws RemoteException
+   */
+  private long getInterval(Konto k) throws RemoteException
+  {
+    if (!Plugin.getStatus(k).checkSyncProvider())
+      return 0L;
+    
+    if (StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_PROFILE,null)) == null || StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_ACCOUNT,null)) == null)
+      return 0L;
+    
+    final SynchronizeOptions options = new SynchronizeOptions(k);
+    if (!options.getSyncKontoauszuege() && !options.getSyncSaldo())
+      return 0L;
+    
+    int minutes = settings.getInt("poll.interval.minutes",0);
+    final String s = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_POLL_INTERVAL,null));
+    if (s != null)
+    {
+      try
+      {
+        minutes = Integer.parseInt(s);
+      }
+      catch (NumberFormatException nfe)
+      {
+        Logger.warn("invalid poll interval for konto id " + k.getID() + ": " + s);
+      }
+    }
+    return minutes > 0 ? minutes * 60000L : 0L;
+  }
+  
+  /**
+   * Zustand des Abrufs eines Kontos.
+   */
+  private static class PollState
+  {
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile long next;
+    private volatile long interval;
+    
+    /**
+     * ct.
+     * @param next Zeitpunkt des ersten Abrufs.
+     */
+    private PollState(long next)
+    {
+      this.next = next;
+    }
+
+  }
+}
@@ -0,0 +1,281 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.math.BigDecimal;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Amount;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.hbci.transferwise.transport.TransactionHandler;
+import de.willuhn.jameica.hbci.transferwise.transport.TransportService;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
+
+/**
+ * Laedt die Kontoauszuege eines Zeitraumes.
+ * Lange Zeitraeume werden in Zeitfenster fester Groesse aufgeteilt und parallel auf einem kleinen
+ * Thread-Pool ("sync.window.threads") abgerufen. Die Buchungen werden dennoch fensterweise in zeitlicher
+ * Reihenfolge an den Handler uebergeben. Damit die empfangenen Buchungen nicht den Speicher fuellen,
+ * werden hoechstens so viele Fenster vorab geladen, wie Threads vorhanden sind. Die Begrenzung der
+ * Requests pro API-Key erfolgt wie bei jedem anderen Abruf im {@link TransportService}.
+ * Der Handler laeuft im Thread des Aufrufers. Auf Konto und Datenbank wird nicht zugegriffen,
+ * die Zugangsdaten werden vorab vom Aufrufer ermittelt.
+ */
+public class StatementLoader
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final TransportService service;
+  private final TransportService.Credentials credentials;
+  private final String path;
+  private final Map<String,String> params;
+
+  /**
+   * ct.
+   * @param service der Transport-Service.
+   * @param credentials die Zugangsdaten des Kontos.
+   * @param path der Pfad des Kontoauszuges.
+   * @param params die Parameter ohne die Angaben zum Zeitraum.
+   */
+  public StatementLoader(TransportService service, TransportService.Credentials credentials, String path, Map<String,String> params)
+  {
+    this.service     = service;
+    this.credentials = credentials;
+    this.path        = path;
+    this.params      = params;
+  }
+
+  /**
+   * Laedt die Kontoauszuege des Zeitraumes.
+   * @param start Beginn des Zeitraumes.
+   * @param end Ende des Zeitraumes.
+   * @param handler der Handler, der die Buchungen erhaelt.
+   * @return der Kontoauszug des letzten Zeitfensters ohne Buchungen. Er enthaelt den Schluss-Saldo.
+   * @throws ApplicationException
+   */
+  public AccountStatement load(Date start, Date end, TransactionHandler handler) throws ApplicationException
+  {
+    final List<Date[]> windows = this.split(start,end);
+    if (windows.size() <= 1)
+      return this.service.getStatement(this.credentials,this.path,this.createParams(start,end),handler);
+
+    final int threads = Math.min(windows.size(),Math.max(1,Math.min(8,settings.getInt("sync.window.threads",3))));
+    Logger.info("fetching " + windows.size() + " statement windows using " + threads + " threads");
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads,r -> {
+      final Thread t = new Thread(r,"transferwise-statement-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    try
+    {
+      // Wir verarbeiten die Fenster in zeitlicher Reihenfolge, waehrend die naechsten bereits geladen werden.
+      final Deque<Future<AccountStatement>> pending = new ArrayDeque<Future<AccountStatement>>();
+      int submitted = 0;
+      AccountStatement last = null;
+      Transaction previous = null;
+      for (int i=0;i<windows.size();++i)
+      {
+        while (submitted < windows.size() && pending.size() < threads)
+        {
+          pending.add(this.prefetch(executor,this.credentials,windows.get(submitted++)));
+        }
+
+        final AccountStatement as = pending.poll().get();
+        if (as == null)
+          continue;
+
+        last = as;
+        final List<Transaction> list = as.transactions;
+        as.transactions = new ArrayList<Transaction>();
+        if (list == null || list.size() == 0)
+          continue;
+
+        Collections.sort(list,new Comparator<Transaction>() {
+          @Override
+          public int compare(Transaction t1, Transaction t2)
+          {
+            if (t1.date == null || t2.date == null)
+              return 0;
+            return t1.date.compareTo(t2.date);
+          }
+        });
+
+        checkBalance(previous,list.get(0));
+        for (Transaction t:list)
+        {
+          handler.handle(t);
+        }
+        previous = list.get(list.size() - 1);
+      }
+      return last;
+    }
+    catch (ExecutionException ee)
+    {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof ApplicationException)
+        throw (ApplicationException) cause;
+      if (cause instanceof OperationCanceledException)
+        throw (OperationCanceledException) cause;
+      Logger.error("unable to fetch account statements",cause);
+      throw new ApplicationException(i18n.tr("Fehler beim Abrufen der Kontoauszüge"),cause);
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException();
+    }
+    catch (ApplicationException ae)
+    {
+      throw ae;
+    }
+    catch (OperationCanceledException oce)
+    {
+      throw oce;
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to apply account statements",e);
+      throw new ApplicationException(i18n.tr("Fehler beim Abrufen der Kontoauszüge"),e);
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Startet den Abruf eines Zeitfensters im Hintergrund. Die Buchungen werden gesammelt.
+   * @param executor der Executor.
+   * @param credentials die Zugangsdaten.
+   * @param w das Zeitfenster.
+   * @return der Kontoauszug des Fensters samt Buchungen.
+   */
+  private Future<AccountStatement> prefetch(ExecutorService executor, TransportService.Credentials credentials, Date[] w)
+  {
+    final Map<String,String> params = this.createParams(w[0],w[1]);
+    return executor.submit(() -> {
+      final List<Transaction> list = new ArrayList<Transaction>();
+      final AccountStatement as = this.service.getStatement(credentials,this.path,params,list::add);
+      if (as != null)
+        as.transactions = list;
+      return as;
+    });
+  }
+
+  /**
+   * Prueft, ob der Saldo an der Grenze zwischen zwei Zeitfenstern stimmig ist.
+   * @param previous die letzte Buchung des vorherigen Fensters. Kann NULL sein.
+   * @param next die erste Buchung des naechsten Fensters.
+   */
+  private static void checkBalance(Transaction previous, Transaction next)
+  {
+    if (previous == null || next == null)
+      return;
+
+    final BigDecimal before = value(previous.runningBalance);
+    final BigDecimal after  = value(next.runningBalance);
+    final BigDecimal amount = value(next.amount);
+    if (before == null || after == null || amount == null)
+      return;
+
+    if (before.add(amount).compareTo(after) != 0)
+      Logger.warn("running balance mismatch between statement windows at " + next.date + ": " + before + " + " + amount + " != " + after);
+  }
+
+  /**
+   * Liefert den Wert des Betrages.
+   * @param a der Betrag.
+   * @return der Wert oder NULL.
+   */
+  private static BigDecimal value(Amount a)
+  {
+    return a != null ? a.value : null;
+  }
+
+  /**
+   * Teilt den Zeitraum in Zeitfenster auf.
+   * @param start Beginn des Zeitraumes.
+   * @param end Ende des Zeitraumes.
+   * @return die Liste der Zeitfenster mit jeweils Beginn und Ende.
+   */
+  private List<Date[]> split(Date start, Date end)
+  {
+    final List<Date[]> result = new ArrayList<Date[]>();
+    final int days = settings.getInt("sync.window.days",31);
+    if (days <= 0)
+    {
+      result.add(new Date[]{start,end});
+      return result;
+    }
+
+    Date from = start;
+    while (from.before(end))
+    {
+      final Calendar cal = Calendar.getInstance();
+      cal.setTime(from);
+      cal.add(Calendar.DATE,days);
+      final Date next = cal.getTime();
+      if (!next.before(end))
+      {
+        result.add(new Date[]{from,end});
+        break;
+      }
+
+      // Das Ende ist die letzte Millisekunde vor dem naechsten Fenster
+      result.add(new Date[]{from,new Date(next.getTime() - 1L)});
+      from = next;
+    }
+    return result;
+  }
+
+  /**
+   * Erzeugt die Parameter fuer ein Zeitfenster.
+   * @param start Beginn des Fensters.
+   * @param end Ende des Fensters.
+   * @return die Parameter.
+   */
+  private Map<String,String> createParams(Date start, Date end)
+  {
+    final DateFormat df = new SimpleDateFormat(Plugin.DATEFORMAT);
+    final Map<String,String> result = new HashMap<String,String>(this.params);
+    result.put("intervalStart",df.format(start));
+    result.put("intervalEnd",df.format(end));
+    return result;
+  }
+}
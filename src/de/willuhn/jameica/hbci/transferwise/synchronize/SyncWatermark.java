@@ -0,0 +1,145 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Merkt sich pro Konto die neueste erfolgreich verarbeitete Buchung.
+ * Die naechste Synchronisierung muss dann nur noch die Buchungen ab diesem Zeitpunkt abrufen.
+ */
+public class SyncWatermark
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  private Transaction newest = null;
+  
+  /**
+   * Liefert das Datum der neuesten verarbeiteten Buchung des Kontos.
+   * @param k das Konto.
+   * @return das Datum oder NULL, wenn noch keines gespeichert ist.
+   * @throws RemoteException
+   */
+  public static Date get(Konto k) throws RemoteException
+  {
+    final String s = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_WATERMARK_DATE,null));
+    if (s == null)
+      return null;
+    
+    try
+    {
+      return new Date(Long.parseLong(s));
+    }
+    catch (NumberFormatException nfe)
+    {
+      Logger.warn("invalid sync watermark " + s + " for account id " + k.getID() + ", ignoring");
+      return null;
+    }
+  }
+  
+  /**
+   * Liefert die Referenznummer der neuesten verarbeiteten Buchung des Kontos.
+   * @param k das Konto.
+   * @return die Referenznummer oder NULL, wenn keine gespeichert ist.
+   * @throws RemoteException
+   */
+  public static String getReference(Konto k) throws RemoteException
+  {
+    return StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_WATERMARK_REFERENCE,null));
+  }
+  
+  /**
+   * Liefert das Startdatum fuer die naechste Synchronisierung auf Basis der Markierung.
+   * Da Buchungen auch etwas verspaetet mit einem frueheren Zeitpunkt eingestellt werden koennen,
+   * ueberlappt es die Markierung um einige Stunden, hoechstens jedoch um einen Tag.
+   * @param k das Konto.
+   * @return das Startdatum inclusive Ueberlappung oder NULL, wenn keine verwendbare Markierung existiert.
+   * @throws RemoteException
+   */
+  public static Date getStartDate(Konto k) throws RemoteException
+  {
+    // Ohne Saldo-Datum wurde das Konto noch nie abgerufen oder zurueckgesetzt. Dann ignorieren wir die Markierung.
+    if (k.getSaldoDatum() == null)
+      return null;
+    
+    final Date d = get(k);
+    if (d == null)
+      return null;
+    
+    if (d.after(new Date()))
+    {
+      Logger.warn("future sync watermark " + d + " given, ignoring");
+      return null;
+    }
+    
+    final int overlap = Math.max(0,Math.min(24,settings.getInt("sync.watermark.overlap.hours",2)));
+    final Date start = new Date(d.getTime() - TimeUnit.HOURS.toMillis(overlap));
+    Logger.info("startdate: " + start + " (based on sync watermark, overlap " + overlap + "h)");
+    return start;
+  }
+  
+  /**
+   * Loescht die Markierung des Kontos, sodass die naechste Synchronisierung wieder vom Saldo-Datum ausgeht.
+   * @param k das Konto.
+   * @throws RemoteException
+   */
+  public static void reset(Konto k) throws RemoteException
+  {
+    k.setMeta(Plugin.META_PARAM_WATERMARK_DATE,null);
+    k.setMeta(Plugin.META_PARAM_WATERMARK_REFERENCE,null);
+  }
+  
+  /**
+   * Merkt sich die Buchung, falls sie neuer ist als die bisher neueste.
+   * @param t die Buchung.
+   */
+  public void track(Transaction t)
+  {
+    if (t == null || t.date == null)
+      return;
+    
+    if (this.newest == null || t.date.after(this.newest.date))
+      this.newest = t;
+  }
+  
+  /**
+   * Speichert die neueste Buchung als Markierung im Konto.
+   * Ist keine Buchung vorhanden, bleibt die bisherige Markierung erhalten.
+   * @param k das Konto.
+   * @throws RemoteException
+   */
+  public void store(Konto k) throws RemoteException
+  {
+    if (this.newest == null)
+      return;
+    
+    final Date current = get(k);
+    if (current != null && !this.newest.date.after(current))
+      return;
+    
+    Logger.info("saving sync watermark " + this.newest.date + " (reference " + this.newest.referenceNumber + ") for account id " + k.getID());
+    k.setMeta(Plugin.META_PARAM_WATERMARK_DATE,Long.toString(this.newest.date.getTime()));
+    k.setMeta(Plugin.META_PARAM_WATERMARK_REFERENCE,this.newest.referenceNumber);
+  }
+}
+
+
@@ -0,0 +1,85 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import de.willuhn.util.ProgressMonitor;
+
+/**
+ * Wrapper, der die Zugriffe auf einen Monitor synchronisiert.
+ * Wird verwendet, wenn mehrere Konten parallel synchronisiert werden.
+ */
+class SynchronizedProgressMonitor implements ProgressMonitor
+{
+  private final ProgressMonitor monitor;
+
+  /**
+   * ct.
+   * @param monitor der eigentliche Monitor.
+   */
+  SynchronizedProgressMonitor(ProgressMonitor monitor)
+  {
+    this.monitor = monitor;
+  }
+
+  /**
+   * @see de.willuhn.util.ProgressMonitor#setPercentComplete(int)
+   */
+  @Override
+  public synchronized void setPercentComplete(int percent)
+  {
+    this.monitor.setPercentComplete(percent);
+  }
+
+  /**
+   * @see de.willuhn.util.ProgressMonitor#addPercentComplete(int)
+   */
+  @Override
+  public synchronized void addPercentComplete(int percent)
+  {
+    this.monitor.addPercentComplete(percent);
+  }
+
+  /**
+   * @see de.willuhn.util.ProgressMonitor#getPercentComplete()
+   */
+  @Override
+  public synchronized int getPercentComplete()
+  {
+    return this.monitor.getPercentComplete();
+  }
+
+  /**
+   * @see de.willuhn.util.ProgressMonitor#setStatus(int)
+   */
+  @Override
+  public synchronized void setStatus(int status)
+  {
+    this.monitor.setStatus(status);
+  }
+
+  /**
+   * @see de.willuhn.util.ProgressMonitor#setStatusText(java.lang.String)
+   */
+  @Override
+  public synchronized void setStatusText(String text)
+  {
+    this.monitor.setStatusText(text);
+  }
+
+  /**
+   * @see de.willuhn.util.ProgressMonitor#log(java.lang.String)
+   */
+  @Override
+  public synchronized void log(String msg)
+  {
+    this.monitor.log(msg);
+  }
+}
@@ -0,0 +1,107 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.util.Arrays;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.datasource.rmi.DBService;
+import de.willuhn.jameica.hbci.HBCIProperties;
+import de.willuhn.jameica.hbci.rmi.HibiscusAddress;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.hbci.server.VerwendungszweckUtil;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Amount;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.TransactionDetails;
+
+/**
+ * Konvertiert die Buchungen von Transferwise in Hibiscus-Datensaetze.
+ */
+public class TransactionConverter
+{
+  /**
+   * Konvertiert die Buchung in einen Hibiscus-Datensatz.
+   * @param t die Buchung.
+   * @return der Hibiscus-Datensatz.
+   * @throws Exception
+   */
+  public static Umsatz convert(Transaction t) throws Exception
+  {
+    return convert(t,de.willuhn.jameica.hbci.Settings.getDBService());
+  }
+
+  /**
+   * Konvertiert die Buchung in einen Hibiscus-Datensatz.
+   * @param t die Buchung.
+   * @param service der Datenbank-Service, ueber den die Datensaetze erzeugt werden.
+   * @return der Hibiscus-Datensatz.
+   * @throws Exception
+   */
+  public static Umsatz convert(Transaction t, DBService service) throws Exception
+  {
+    Umsatz umsatz = (Umsatz) service.createObject(Umsatz.class,null);
+    umsatz.setTransactionId(t.referenceNumber);
+
+    TransactionDetails td = t.details;
+
+    if (td.type != null)
+      umsatz.setArt(clean(td.type.name()));
+
+    Amount saldo = t.runningBalance;
+    if (saldo != null && saldo.value != null)
+      umsatz.setSaldo(saldo.value.doubleValue());
+
+    Amount value = t.amount;
+    if (value == null)
+      value = td.amount;
+    if (value == null)
+      value = td.targetAmount;
+
+    if (value != null)
+      umsatz.setBetrag(value.value.doubleValue());
+
+    umsatz.setDatum(t.date);
+    umsatz.setValuta(t.date);
+
+    if (td.description != null)
+      VerwendungszweckUtil.applyCamt(umsatz,Arrays.asList(td.description));
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Gegenkonto
+    if (td.senderAccount != null || td.senderName != null)
+    {
+      HibiscusAddress e = (HibiscusAddress) service.createObject(HibiscusAddress.class,null);
+      e.setIban(td.senderAccount);
+
+      String name = td.senderName;
+      if (name != null && name.length() > HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH)
+        name = StringUtils.trimToEmpty(name.substring(0,HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH));
+      e.setName(name);
+      umsatz.setGegenkonto(e);
+    }
+    //
+    ////////////////////////////////////////////////////////////////////////////
+
+    return umsatz;
+  }
+
+  /**
+   * Entfernt Zeichen, die in den Strings nicht enthalten sein sollten.
+   * Typischerweise Zeilenumbrueche.
+   * @param s der String.
+   * @return der bereinigte String.
+   */
+  private static String clean(String s)
+  {
+    return HBCIProperties.replace(s,HBCIProperties.TEXT_REPLACEMENTS_UMSATZ);
+  }
+}
@@ -13,19 +13,38 @@ package de.willuhn.jameica.hbci.transferwise.synchronize;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Resource;
 
+import org.apache.commons.lang.StringUtils;
+
 import de.willuhn.annotation.Lifecycle;
 import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.jameica.hbci.SynchronizeOptions;
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.hbci.synchronize.AbstractSynchronizeBackend;
 import de.willuhn.jameica.hbci.synchronize.SynchronizeEngine;
 import de.willuhn.jameica.hbci.synchronize.SynchronizeSession;
 import de.willuhn.jameica.hbci.synchronize.jobs.SynchronizeJob;
+import de.willuhn.jameica.hbci.synchronize.jobs.SynchronizeJobKontoauszug;
 import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.transport.TransportService;
+import de.willuhn.jameica.system.Application;
 import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
 import de.willuhn.logging.Logger;
 import de.willuhn.util.ApplicationException;
 import de.willuhn.util.ProgressMonitor;
@@ -36,8 +55,28 @@ import de.willuhn.util.ProgressMonitor;
 @Lifecycle(Type.CONTEXT)
 public class TransferwiseSynchronizeBackend extends AbstractSynchronizeBackend<TransferwiseSynchronizeJobProvider>
 {
+  /**
+   * Lock, ueber den alle Zugriffe auf die Datenbank serialisiert werden, wenn mehrere Konten parallel synchronisiert werden.
+   * Die Konten teilen sich eine Datenbank-Verbindung. Daher gilt das auch fuer lesende Zugriffe.
+   * Waehrend der Lock gehalten wird, erfolgen keine Abrufe beim Server.
+   */
+  final static Object DB_LOCK = new Object();
+
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+
   @Resource
   private SynchronizeEngine engine = null;
+  
+  @Resource
+  private TransportService transportService = null;
+
+  private ParallelSync parallel = null;
+  
+  private final Map<String,CompletableFuture<Void>> claimed = new HashMap<String,CompletableFuture<Void>>();
+  private Worker claimOwner = null;
+  
+  private final Map<String,Object> kontoLocks = new ConcurrentHashMap<String,Object>();
 
   /**
    * @see de.willuhn.jameica.hbci.synchronize.SynchronizeBackend#getName()
@@ -85,10 +124,14 @@ public class TransferwiseSynchronizeBackend extends AbstractSynchronizeBackend<T
    */
   public <T> T create(Class<? extends SynchronizeJob> type, Konto konto) throws ApplicationException
   {
-    if (!this.supports(type,konto))
-      throw new ApplicationException(i18n.tr("Der Geschftsvorfall wird nicht untersttzt"));
-    
-    return(T) super.create(type,konto);
+    // Wird auch aus den Threads des Abrufs im Hintergrund aufgerufen
+    synchronized (DB_LOCK)
+    {
+      if (!this.supports(type,konto))
+        throw new ApplicationException(i18n.tr("Der Geschäftsvorfall wird nicht unterstützt"));
+      
+      return(T) super.create(type,konto);
+    }
   }
 
   /**
@@ -96,10 +139,13 @@ public class TransferwiseSynchronizeBackend extends AbstractSynchronizeBackend<T
    */
   public boolean supports(Class<? extends SynchronizeJob> type, Konto konto)
   {
-    if (!Plugin.getStatus(konto).checkSyncProvider())
-      return false;
-
-    return super.supports(type,konto);
+    synchronized (DB_LOCK)
+    {
+      if (!Plugin.getStatus(konto).checkSyncProvider())
+        return false;
+      
+      return super.supports(type,konto);
+    }
   }
   
   /**
@@ -114,7 +160,7 @@ public class TransferwiseSynchronizeBackend extends AbstractSynchronizeBackend<T
       {
         Konto konto = job.getKonto();
         if (!Plugin.getStatus(konto).checkSyncProvider())
-          throw new ApplicationException(i18n.tr("Das Zugangsverfahren {0} untersttzt das Konto {1} nicht",this.getName(),konto.getLongName()));
+          throw new ApplicationException(i18n.tr("Das Zugangsverfahren {0} unterstützt das Konto {1} nicht",this.getName(),konto.getLongName()));
       }
     }
     catch (RemoteException re)
@@ -158,7 +204,10 @@ public class TransferwiseSynchronizeBackend extends AbstractSynchronizeBackend<T
     {
       ////////////////////////////////////////////////////////////////////
       // lokale Variablen
-      ProgressMonitor monitor = worker.getMonitor();
+      final boolean parallel = settings.getBoolean("sync.parallel.enabled",false);
+      
+      // Bei paralleler Ausfuehrung schreiben alle Threads ueber denselben synchronisierten Monitor
+      ProgressMonitor monitor = parallel ? getParallelSync().getMonitor() : worker.getMonitor();
       
       double chunk  = 100d / (worker.getSynchronization().size()) * (this.jobs.size());
       double window = chunk - 6d;
@@ -170,13 +219,384 @@ public class TransferwiseSynchronizeBackend extends AbstractSynchronizeBackend<T
       monitor.log(" ");
       monitor.log(i18n.tr("Synchronisiere Konto: {0}",this.getKonto().getLongName()));
 
+      if (parallel)
+      {
+        // Die Gruppen werden parallel ausgefuehrt. Wir warten hier nur noch auf das Ergebnis
+        // dieser Gruppe, damit die Fehlerbehandlung des Workers pro Konto erhalten bleibt.
+        getParallelSync().await(this);
+        return;
+      }
+
+      try
+      {
+        this.run(monitor);
+      }
+      finally
+      {
+        transportService.logPoolStats();
+      }
+    }
+    
+    /**
+     * Liefert das Konto der Gruppe.
+     * @return das Konto der Gruppe.
+     */
+    private Konto konto()
+    {
+      return this.getKonto();
+    }
+    
+    /**
+     * Liefert das Profil des Kontos fuer die Begrenzung der parallelen Ausfuehrung.
+     * Ist das Profil noch nicht bekannt, wird stattdessen der API-Key verwendet.
+     * @return das Profil.
+     */
+    private String getProfile()
+    {
+      try
+      {
+        final Konto k = this.getKonto();
+        synchronized (DB_LOCK)
+        {
+          final String profile = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_PROFILE,null));
+          return profile != null ? profile : StringUtils.trimToEmpty(k.getMeta(Plugin.META_PARAM_APIKEY,null));
+        }
+      }
+      catch (RemoteException re)
+      {
+        Logger.error("unable to determine profile, using shared limit",re);
+        return "";
+      }
+    }
+    
+    /**
+     * Fuehrt die Jobs der Gruppe aus.
+     * @param monitor der Monitor fuer die Fortschrittsanzeige.
+     * @throws Exception
+     */
+    private void run(ProgressMonitor monitor) throws Exception
+    {
       Logger.info("processing jobs");
       for (SynchronizeJob job:this.jobs)
       {
         this.checkInterrupted();
-        monitor.setStatusText(i18n.tr("Fhre Geschftsvorfall aus: \"{0}\"",job.getName()));
+        monitor.setStatusText(i18n.tr("Führe Geschäftsvorfall aus: \"{0}\"",job.getName()));
         ((TransferwiseSynchronizeJob)job).exeute();
       }
     }
   }
+  
+  /**
+   * Ruft die Kontoauszuege eines einzelnen Kontos direkt im aufrufenden Thread ab,
+   * ohne eine Synchronisierung ueber die Engine zu starten.
+   * @param konto das Konto.
+   * @param umsatz true, wenn Saldo und Umsaetze unabhaengig von den Synchronisierungsoptionen
+   * des Kontos abgerufen werden sollen.
+   * @throws ApplicationException
+   */
+  void executeKonto(Konto konto, boolean umsatz) throws ApplicationException
+  {
+    final SynchronizeJobKontoauszug job = this.create(SynchronizeJobKontoauszug.class,konto);
+    job.setContext(SynchronizeJob.CTX_ENTITY,konto);
+    job.setContext(TransferwiseSynchronizeJobKontoauszug.CTX_DIRECT,Boolean.TRUE);
+    if (umsatz)
+    {
+      job.setContext(SynchronizeJobKontoauszug.CTX_FORCE_SALDO,Boolean.TRUE);
+      job.setContext(SynchronizeJobKontoauszug.CTX_FORCE_UMSATZ,Boolean.TRUE);
+    }
+    ((TransferwiseSynchronizeJob) job).exeute();
+  }
+  
+  /**
+   * Prueft, ob gerade eine Synchronisierung laeuft.
+   * @return true, wenn gerade eine Synchronisierung laeuft.
+   */
+  boolean isRunning()
+  {
+    return this.getCurrentSession() != null;
+  }
+  
+  /**
+   * Liefert das Objekt, ueber das die Abrufe eines Kontos serialisiert werden.
+   * Damit laufen der Abruf im Hintergrund und die regulaere Synchronisierung
+   * fuer dasselbe Konto nie gleichzeitig.
+   * @param konto das Konto.
+   * @return das Lock-Objekt.
+   * @throws RemoteException
+   */
+  Object getLock(Konto konto) throws RemoteException
+  {
+    return this.kontoLocks.computeIfAbsent(konto.getID(),id -> new Object());
+  }
+  
+  /**
+   * Reserviert das Konto und die Konten der anderen Waehrungen desselben Transferwise-Accounts
+   * aus der laufenden Synchronisierung fuer den gemeinsamen Abruf.
+   * Ein Konto wird pro Synchronisierung nur einmal reserviert. Die Jobs der bereits reservierten
+   * Konten warten per {@link #awaitClaim(Konto)} nur noch auf das Ergebnis. Reserviert werden nur Konten,
+   * fuer die laut ihren Synchronisierungsoptionen auch die Umsaetze abgerufen werden sollen.
+   * Ausserhalb einer Synchronisierung wird nichts reserviert.
+   * @param konto das Konto.
+   * @param account der Account des Kontos.
+   * @return die Liste der reservierten Konten. Beginnt mit dem Konto selbst. Ist leer, wenn
+   * das Konto bereits zusammen mit einer anderen Waehrung abgerufen wurde.
+   * @throws RemoteException
+   */
+  List<Konto> claim(Konto konto, String account) throws RemoteException
+  {
+    final List<Konto> result = new ArrayList<Konto>();
+    final Worker current = worker;
+    if (current == null)
+    {
+      result.add(konto);
+      return result;
+    }
+    
+    synchronized (this.claimed)
+    {
+      if (this.claimOwner != current)
+      {
+        // Offene Reservierungen der vorherigen Synchronisierung duerfen niemanden blockieren
+        for (CompletableFuture<Void> f:this.claimed.values())
+        {
+          f.cancel(false);
+        }
+        this.claimed.clear();
+        this.claimOwner = current;
+      }
+      
+      if (this.claimed.containsKey(konto.getID()))
+        return result;
+      
+      // Auf das Ergebnis des Kontos selbst wartet niemand
+      this.claimed.put(konto.getID(),CompletableFuture.completedFuture(null));
+      result.add(konto);
+
+      synchronized (DB_LOCK)
+      {
+        final String apiKey = konto.getMeta(Plugin.META_PARAM_APIKEY,null);
+        for (JobGroup g:current.getSynchronization())
+        {
+          if (!(g instanceof TransferwiseJobGroup))
+            continue;
+          
+          final Konto other = ((TransferwiseJobGroup) g).konto();
+          if (other == null || this.claimed.containsKey(other.getID()))
+            continue;
+          
+          if (!Objects.equals(apiKey,other.getMeta(Plugin.META_PARAM_APIKEY,null)))
+            continue;
+          
+          if (!account.equals(other.getMeta(Plugin.META_PARAM_ACCOUNT,null)))
+            continue;
+          
+          // Soll fuer das Konto nur der Saldo oder gar nichts abgerufen werden, erledigt es sein eigener Job
+          if (!new SynchronizeOptions(other).getSyncKontoauszuege())
+            continue;
+          
+          this.claimed.put(other.getID(),new CompletableFuture<Void>());
+          result.add(other);
+        }
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Meldet das Ergebnis des Abrufs eines reservierten Kontos an dessen eigenen Job.
+   * Weitere Aufrufe fuer dasselbe Konto werden ignoriert.
+   * @param konto das Konto.
+   * @param error der Fehler beim Abruf oder NULL, wenn er erfolgreich war.
+   * @throws RemoteException
+   */
+  void release(Konto konto, Exception error) throws RemoteException
+  {
+    final CompletableFuture<Void> f;
+    synchronized (this.claimed)
+    {
+      f = this.claimed.get(konto.getID());
+    }
+    if (f == null)
+      return;
+    
+    if (error != null)
+      f.completeExceptionally(error);
+    else
+      f.complete(null);
+  }
+  
+  /**
+   * Wartet auf das Ergebnis des Abrufs, bei dem das Konto zusammen mit einer anderen Waehrung
+   * abgerufen wird. Ein Fehler beim Abruf wird geworfen, sodass er beim Konto selbst gemeldet wird.
+   * @param konto das Konto.
+   * @throws Exception der Fehler beim Abruf des Kontos.
+   */
+  void awaitClaim(Konto konto) throws Exception
+  {
+    final CompletableFuture<Void> f;
+    synchronized (this.claimed)
+    {
+      f = this.claimed.get(konto.getID());
+    }
+    if (f == null)
+      return;
+    
+    try
+    {
+      f.get();
+    }
+    catch (ExecutionException ee)
+    {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      throw ee;
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException();
+    }
+  }
+  
+  /**
+   * Liefert die parallele Ausfuehrung fuer den aktuellen Worker und startet sie beim ersten Aufruf.
+   * Wird nur aus dem Thread des Workers aufgerufen.
+   * @return die parallele Ausfuehrung.
+   */
+  private ParallelSync getParallelSync()
+  {
+    if (this.parallel == null || this.parallel.owner != worker)
+      this.parallel = new ParallelSync(worker);
+    return this.parallel;
+  }
+  
+  /**
+   * Fuehrt die Job-Gruppen der Konten parallel auf einem begrenzten Thread-Pool aus.
+   * Pro Profil ist die Anzahl der gleichzeitig laufenden Gruppen zusaetzlich begrenzt.
+   */
+  private class ParallelSync
+  {
+    private final Worker owner;
+    private final Map<JobGroup,Future<?>> futures = new IdentityHashMap<JobGroup,Future<?>>();
+    private final Map<String,Semaphore> limits = new HashMap<String,Semaphore>();
+    private final ExecutorService executor;
+    private final ProgressMonitor monitor;
+    private int pending = 0;
+    
+    /**
+     * ct.
+     * @param owner der Worker, dessen Gruppen ausgefuehrt werden.
+     */
+    private ParallelSync(Worker owner)
+    {
+      this.owner = owner;
+      
+      final List<JobGroup> groups = owner.getSynchronization();
+      final int threads = Math.max(1,Math.min(groups.size(),settings.getInt("sync.parallel.threads",4)));
+      final int perProfile = Math.max(1,settings.getInt("sync.parallel.perprofile",2));
+      Logger.info("synchronizing " + groups.size() + " accounts using " + threads + " threads, max. " + perProfile + " per profile");
+
+      this.executor = Executors.newFixedThreadPool(threads,r -> {
+        final Thread t = new Thread(r,"transferwise-sync-" + THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+      
+      this.monitor = new SynchronizedProgressMonitor(owner.getMonitor());
+      try
+      {
+        for (JobGroup g:groups)
+        {
+          if (!(g instanceof TransferwiseJobGroup))
+            continue;
+          
+          final TransferwiseJobGroup group = (TransferwiseJobGroup) g;
+          final Semaphore limit = this.getLimit(group.getProfile(),perProfile);
+          this.futures.put(group,this.executor.submit(() -> {
+            limit.acquire();
+            try
+            {
+              group.run(this.monitor);
+            }
+            finally
+            {
+              limit.release();
+            }
+            return null;
+          }));
+          this.pending++;
+        }
+      }
+      finally
+      {
+        // Bereits uebergebene Gruppen laufen noch zu Ende. Danach werden die Threads beendet.
+        this.executor.shutdown();
+      }
+    }
+    
+    /**
+     * Liefert den synchronisierten Monitor, den sich alle Gruppen teilen.
+     * @return der Monitor.
+     */
+    private ProgressMonitor getMonitor()
+    {
+      return this.monitor;
+    }
+    
+    /**
+     * Liefert die Begrenzung fuer das Profil.
+     * @param profile das Profil.
+     * @param permits die Anzahl der gleichzeitig erlaubten Gruppen.
+     * @return die Begrenzung.
+     */
+    private Semaphore getLimit(String profile, int permits)
+    {
+      Semaphore s = this.limits.get(profile);
+      if (s == null)
+      {
+        s = new Semaphore(permits);
+        this.limits.put(profile,s);
+      }
+      return s;
+    }
+    
+    /**
+     * Wartet auf das Ende der Gruppe.
+     * @param group die Gruppe.
+     * @throws Exception der Fehler, der bei der Ausfuehrung der Gruppe aufgetreten ist.
+     */
+    private void await(JobGroup group) throws Exception
+    {
+      final Future<?> f = this.futures.get(group);
+      if (f == null)
+        return;
+      
+      try
+      {
+        f.get();
+      }
+      catch (ExecutionException ee)
+      {
+        final Throwable cause = ee.getCause();
+        if (cause instanceof Exception)
+          throw (Exception) cause;
+        throw ee;
+      }
+      catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        this.executor.shutdownNow();
+        throw new OperationCanceledException();
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          if (--this.pending == 0)
+            transportService.logPoolStats();
+        }
+      }
+    }
+  }
 }
@@ -11,37 +11,37 @@
 package de.willuhn.jameica.hbci.transferwise.synchronize;
 
 import java.rmi.RemoteException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Resource;
 
 import org.apache.commons.lang.StringUtils;
 
-import de.willuhn.datasource.GenericObject;
-import de.willuhn.datasource.rmi.DBIterator;
 import de.willuhn.jameica.hbci.HBCI;
 import de.willuhn.jameica.hbci.HBCIProperties;
-import de.willuhn.jameica.hbci.messaging.ImportMessage;
-import de.willuhn.jameica.hbci.messaging.SaldoMessage;
-import de.willuhn.jameica.hbci.rmi.HibiscusAddress;
+import de.willuhn.jameica.hbci.SynchronizeOptions;
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.hbci.rmi.Protokoll;
 import de.willuhn.jameica.hbci.rmi.Umsatz;
-import de.willuhn.jameica.hbci.server.VerwendungszweckUtil;
 import de.willuhn.jameica.hbci.synchronize.jobs.SynchronizeJobKontoauszug;
 import de.willuhn.jameica.hbci.transferwise.Plugin;
 import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
 import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Amount;
-import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
-import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.TransactionDetails;
+import de.willuhn.jameica.hbci.transferwise.messaging.SyncSaldoMessage;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.hbci.transferwise.transport.StatementArchive;
 import de.willuhn.jameica.hbci.transferwise.transport.TransportService;
-import de.willuhn.jameica.messaging.StatusBarMessage;
 import de.willuhn.jameica.system.Application;
 import de.willuhn.jameica.system.OperationCanceledException;
 import de.willuhn.jameica.system.Settings;
@@ -58,7 +58,18 @@ public class TransferwiseSynchronizeJobKontoauszug extends SynchronizeJobKontoau
   private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
   private final static Settings settings = Application.getPluginLoader().getPlugin(HBCI.class).getResources().getSettings();
   
+  private final static Settings pluginSettings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+  
+  /**
+   * Context-Key, der kennzeichnet, dass der Job ausserhalb einer Synchronisierung der Engine
+   * ausgefuehrt wird. Die Konten der anderen Waehrungen werden dann nicht mit abgerufen.
+   */
+  public final static String CTX_DIRECT = "ctx.transferwise.direct";
+  
   @Resource private TransportService transportService;
+  @Resource private TransferwiseSynchronizeBackend backend;
+  @Resource private StatementArchive archive;
 
   /**
    * @see de.willuhn.jameica.hbci.transferwise.synchronize.TransferwiseSynchronizeJob#exeute()
@@ -70,90 +81,59 @@ public class TransferwiseSynchronizeJobKontoauszug extends SynchronizeJobKontoau
     try
     {
       final Konto k = (Konto) this.getContext(CTX_ENTITY);
-      final String profile = this.transportService.getProfile(k);
-      final String account = this.transportService.getAccount(k);
       
-      final StringBuilder sb = new StringBuilder("/v3/profiles/").append(profile);
-      sb.append("/borderless-accounts/").append(account);
-      sb.append("/statement.json");
-
-      final DateFormat df = new SimpleDateFormat(Plugin.DATEFORMAT);
-      final Date startDate = this.getStartDate(k);
-
-      final Map<String,String> params = new HashMap<String,String>();
-      final String curr = StringUtils.trimToNull(k.getWaehrung());
-      params.put("currency",curr != null ? curr : HBCIProperties.CURRENCY_DEFAULT_DE);
-      params.put("intervalStart",df.format(startDate));
-      params.put("intervalEnd",df.format(DateUtil.endOfDay(new Date())));
+      // Im Replay-Modus werden die Umsaetze ohne Netzwerk-Zugriff aus dem Archiv wiederhergestellt
+      if (this.archive.isReplay())
+      {
+        this.replay(k);
+        return;
+      }
       
-      final AccountStatement as = this.transportService.get(k,sb.toString(),params,null,AccountStatement.class);
+      final Boolean forceSaldo  = (Boolean) this.getContext(CTX_FORCE_SALDO);
+      final Boolean forceUmsatz = (Boolean) this.getContext(CTX_FORCE_UMSATZ);
+      final boolean fetchSaldo;
+      final boolean fetchUmsatz;
+      synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+      {
+        final SynchronizeOptions options = new SynchronizeOptions(k);
+        fetchSaldo  = options.getSyncSaldo() || (forceSaldo != null && forceSaldo.booleanValue());
+        fetchUmsatz = options.getSyncKontoauszuege() || (forceUmsatz != null && forceUmsatz.booleanValue());
+      }
       
-      if (as != null)
+      // Wird nur der Saldo benoetigt, genuegt die Liste der Salden. Die Umsaetze fassen wir nicht an.
+      if (fetchSaldo && !fetchUmsatz)
       {
-        int created = 0;
-        int skipped = 0;
-        
-        if (as.transactions != null && as.transactions.size() > 0)
-        {
-          final DBIterator existing = k.getUmsaetze(this.getMergeWindow(startDate,as),null);
-          
-          Logger.info("applying entries");
-          
-          for (Transaction t:as.transactions)
-          {
-            final Umsatz umsatz = convert(t);
-            umsatz.setKonto(k);
-
-            boolean found = false;
-            
-            /////////////////////////////////////////
-            // Checken, ob wir den Umsatz schon haben
-            existing.begin();
-            for (int i = 0; i<existing.size(); i++)
-            {
-              GenericObject dbObject = existing.next();
-              found = dbObject.equals(umsatz);
-              if (found)
-              {
-                skipped++; // Haben wir schon
-                break;
-              }
-            }
-              /////////////////////////////////////////
-            
-            // Umsatz neu anlegen
-            if (!found)
-            {
-              try
-              {
-                umsatz.store(); // den Umsatz haben wir noch nicht, speichern!
-                Application.getMessagingFactory().sendMessage(new ImportMessage(umsatz));
-                created++;
-              }
-              catch (Exception e2)
-              {
-                Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Nicht alle empfangenen Umstze konnten gespeichert werden. Bitte prfen Sie das System-Protokoll"),StatusBarMessage.TYPE_ERROR));
-                Logger.error("error while adding umsatz, skipping this one",e2);
-              }
-            }
-          }
-        }
-        
-        k.addToProtokoll(i18n.tr("Umstze abgerufen"),Protokoll.TYP_SUCCESS);
-        Amount saldo = as.endOfStatementBalance;
-        if (saldo != null && saldo.value != null)
-        {
-          k.setSaldo(saldo.value.doubleValue());
-          k.store();
-          Application.getMessagingFactory().sendMessage(new SaldoMessage(k));
-        }
-        
-        Logger.info("done. new entries: " + created + ", skipped entries (already in database): " + skipped);
+        this.syncSaldo(k);
+        return;
       }
-      else
+      
+      final AccountResolver resolver = new AccountResolver(this.transportService,k);
+      final String profile = resolver.getProfile();
+      final String account = resolver.getAccount();
+      
+      final Boolean direct = (Boolean) this.getContext(CTX_DIRECT);
+      if (!pluginSettings.getBoolean("sync.currency.fanout",false) || account == null || (direct != null && direct.booleanValue()))
       {
-        Logger.info("got no new entries");
+        this.sync(k,profile,account);
+        return;
       }
+      
+      // Die Konten der anderen Waehrungen desselben Accounts werden gleich mit abgerufen.
+      final List<Konto> targets = this.backend.claim(k,account);
+      if (targets.size() == 0)
+      {
+        Logger.info("konto id " + k.getID() + " synchronized together with another currency of account " + account + ", waiting for result");
+        this.backend.awaitClaim(k);
+        return;
+      }
+      
+      if (targets.size() == 1)
+      {
+        this.sync(k,profile,account);
+        return;
+      }
+      
+      this.fanout(targets,profile,account);
     }
     catch (ApplicationException ae)
     {
@@ -166,114 +146,347 @@ public class TransferwiseSynchronizeJobKontoauszug extends SynchronizeJobKontoau
     catch (Exception e)
     {
       Logger.error("error",e);
-      throw new ApplicationException(i18n.tr("Fehler beim Abrufen der Kontoauszge"),e);
+      throw new ApplicationException(i18n.tr("Fehler beim Abrufen der Kontoauszüge"),e);
     }
   }
   
   /**
-   * Liefert das Startdatum fuer den Abgleich mit den existierenden Umsaetzen.
-   * @param startDate das von uns gesendete Startdatum. Wird in {@link AccountStatement} zwar auch nochmal zurueckgeliefert.
-   * Aber warum auf die Daten in der Antwort verlassen, wenn wir das Datum selbst kennen.
-   * @param as die Liste der Umsatzbuchungen.
-   * @return das Startdatum. Kann NULL sein.
+   * Stellt die Umsaetze des Kontos aus dem Archiv wieder her.
+   * Profil und Account werden hierbei nicht abgerufen sondern muessen bereits am Konto hinterlegt sein.
+   * @param k das Konto.
+   * @throws Exception
    */
-  private Date getMergeWindow(final Date startDate, final AccountStatement as)
+  private void replay(final Konto k) throws Exception
   {
-    Date d = null;
-    String basedOn = null;
+    final String account;
+    final String profile;
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      account = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_ACCOUNT,null));
+      
+      // Das Profil ist nur Bestandteil des Pfades. Das Archiv verwendet es nicht.
+      profile = StringUtils.trimToNull(k.getMeta(Plugin.META_PARAM_PROFILE,null));
+    }
+    if (account == null)
+      throw new ApplicationException(i18n.tr("Für das Konto ist noch kein TransferWise-Account hinterlegt. Bitte synchronisieren Sie es zuerst ohne Archiv."));
     
-    for (Transaction ts:as.transactions)
+    Logger.info("replaying account statements of konto id " + k.getID() + " from archive");
+    this.sync(k,profile,account);
+  }
+  
+  /**
+   * Ruft nur den Saldo des Kontos ab.
+   * Liefert die Liste der Salden keinen Saldo, wird stattdessen der Kontoauszug des aktuellen
+   * Tages abgerufen und dessen Schluss-Saldo uebernommen. Die Buchungen werden hierbei verworfen.
+   * @param k das Konto.
+   * @throws Exception
+   */
+  private void syncSaldo(final Konto k) throws Exception
+  {
+    synchronized (this.backend.getLock(k))
     {
-      Date nd = ts.date;
-      if (d == null || nd.before(d))
-      {
-        d = nd;
-        basedOn = "received data";
-      }
+      this.syncSaldoLocked(k);
     }
+  }
+  
+  /**
+   * Ruft nur den Saldo des Kontos ab. Der Aufrufer haelt den Lock des Kontos.
+   * @param k das Konto.
+   * @throws Exception
+   */
+  private void syncSaldoLocked(final Konto k) throws Exception
+  {
+    final long started = System.nanoTime();
+    final AccountResolver resolver = new AccountResolver(this.transportService,k);
+    final String profile = resolver.getProfile();
+    final String account = resolver.getAccount();
     
-    if (d == null && startDate != null)
+    final String curr;
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
     {
-      Calendar cal = Calendar.getInstance();
-      cal.setTime(startDate);
-      cal.add(Calendar.DATE,settings.getInt("umsatz.mergewindow.offset",-30));
-      d = cal.getTime();
-      basedOn = "last sync";
+      curr = StringUtils.trimToNull(k.getWaehrung());
     }
     
-    if (d == null)
-      Logger.info("merge window: not set");
-    else
-      Logger.info("merge window: " + d + " - now (based on " + basedOn + ")");
+    Amount saldo = this.transportService.getBalance(resolver.getCredentials(),profile,account,curr);
+    if (saldo == null)
+    {
+      Logger.info("no balance available, falling back to statement of current day");
+      final StringBuilder sb = new StringBuilder("/v3/profiles/").append(profile);
+      sb.append("/borderless-accounts/").append(account);
+      sb.append("/statement.json");
+
+      final Map<String,String> params = new HashMap<String,String>();
+      params.put("currency",curr != null ? curr : HBCIProperties.CURRENCY_DEFAULT_DE);
+      
+      final Date now = new Date();
+      final StatementLoader loader = new StatementLoader(this.transportService,resolver.getCredentials(),sb.toString(),params);
+      final AccountStatement as = loader.load(DateUtil.startOfDay(now),now,t -> {});
+      saldo = as != null ? as.endOfStatementBalance : null;
+    }
     
-    return d;
+    if (saldo == null || saldo.value == null)
+    {
+      Logger.warn("unable to determine balance for konto id " + k.getID());
+      return;
+    }
+    
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      k.setSaldo(saldo.value.doubleValue());
+      k.store();
+    }
+    Application.getMessagingFactory().sendMessage(new SyncSaldoMessage(k));
+    Logger.info("balance updated for konto id " + k.getID());
+    Metrics.time("sync.saldo",started);
   }
   
   /**
-   * Konvertiert die Buchung in einen Hibiscus-Datensatz.
-   * @param t die Buchung.
-   * @return der Hibiscus-Datensatz.
+   * Ruft die Kontoauszuege mehrerer Waehrungen desselben Accounts parallel ab.
+   * Profil und Account werden hierbei nur einmal ermittelt. Das Ergebnis der anderen Konten wird
+   * an deren eigene Jobs gemeldet. Geworfen wird nur ein Fehler beim Abruf des ersten Kontos.
+   * @param targets die Konten der Waehrungen. Beginnt mit dem Konto dieses Jobs.
+   * @param profile das Profil.
+   * @param account der Account.
    * @throws Exception
    */
-  private Umsatz convert(Transaction t) throws Exception
+  private void fanout(List<Konto> targets, String profile, String account) throws Exception
   {
-    Umsatz umsatz = (Umsatz) de.willuhn.jameica.hbci.Settings.getDBService().createObject(Umsatz.class,null);
-    umsatz.setTransactionId(t.referenceNumber);
-
-    TransactionDetails td = t.details;
+    final int threads = Math.max(1,Math.min(targets.size(),pluginSettings.getInt("sync.currency.threads",3)));
+    Logger.info("fetching " + targets.size() + " currencies of account " + account + " using " + threads + " threads");
     
-    if (td.type != null)
-      umsatz.setArt(clean(td.type.name()));
+    final ExecutorService executor = Executors.newFixedThreadPool(threads,r -> {
+      final Thread t = new Thread(r,"transferwise-currency-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
     
-    Amount saldo = t.runningBalance;
-    if (saldo != null && saldo.value != null)
-      umsatz.setSaldo(saldo.value.doubleValue());
+    try
+    {
+      final List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (Konto target:targets)
+      {
+        futures.add(executor.submit(() -> {
+          try
+          {
+            this.sync(target,profile,account);
+            this.backend.release(target,null);
+          }
+          catch (Exception e)
+          {
+            this.backend.release(target,e);
+            throw e;
+          }
+          return null;
+        }));
+      }
+      
+      // Wir warten auf alle Waehrungen. Die Fehler der anderen Konten melden deren eigene Jobs.
+      Exception error = null;
+      for (int i=0;i<futures.size();++i)
+      {
+        try
+        {
+          futures.get(i).get();
+        }
+        catch (ExecutionException ee)
+        {
+          final Throwable cause = ee.getCause();
+          if (i == 0)
+            error = cause instanceof Exception ? (Exception) cause : ee;
+          else
+            Logger.error("error while synchronizing konto id " + targets.get(i).getID() + " together with konto id " + targets.get(0).getID(),cause);
+        }
+      }
+      if (error != null)
+        throw error;
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException();
+    }
+    finally
+    {
+      executor.shutdownNow();
+      
+      // Konten, deren Abruf nicht mehr stattgefunden hat, melden wir als abgebrochen
+      for (Konto target:targets)
+      {
+        this.backend.release(target,new OperationCanceledException());
+      }
+    }
+  }
+  
+  /**
+   * Ruft die Kontoauszuege fuer das Konto ab und speichert die neuen Umsaetze.
+   * @param k das Konto.
+   * @param profile das Profil.
+   * @param account der Account.
+   * @throws Exception
+   */
+  private void sync(final Konto k, final String profile, final String account) throws Exception
+  {
+    synchronized (this.backend.getLock(k))
+    {
+      this.syncLocked(k,profile,account);
+    }
+  }
+  
+  /**
+   * Ruft die Kontoauszuege fuer das Konto ab. Der Aufrufer haelt den Lock des Kontos.
+   * @param k das Konto.
+   * @param profile das Profil.
+   * @param account der Account.
+   * @throws Exception
+   */
+  private void syncLocked(final Konto k, final String profile, final String account) throws Exception
+  {
+    final long started = System.nanoTime();
+    final StringBuilder sb = new StringBuilder("/v3/profiles/").append(profile);
+    sb.append("/borderless-accounts/").append(account);
+    sb.append("/statement.json");
 
-    Amount value = t.amount;
-    if (value == null)
-      value = td.amount;
-    if (value == null)
-      value = td.targetAmount;
+    final Map<String,String> params = new HashMap<String,String>();
+    final String curr;
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      curr = StringUtils.trimToNull(k.getWaehrung());
+    }
+    params.put("currency",curr != null ? curr : HBCIProperties.CURRENCY_DEFAULT_DE);
 
-    if (value != null)
-      umsatz.setBetrag(value.value.doubleValue());
+    // Im Replay-Modus verwenden wir das komplette Archiv, damit z.B. nach dem Wiederherstellen
+    // eines Datenbank-Backups auch die Umsaetze vor der Markierung der letzten Synchronisierung ankommen.
+    final Date archived = this.archive.isReplay() ? this.archive.getStartDate(account,params.get("currency")) : null;
+    final Date watermark;
+    final String reference;
+    final Date startDate;
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      watermark = archived == null ? SyncWatermark.getStartDate(k) : null;
+      reference = watermark != null ? SyncWatermark.getReference(k) : null;
+      startDate = archived != null ? archived : (watermark != null ? watermark : this.getStartDate(k));
+    }
     
-    umsatz.setDatum(t.date);
-    umsatz.setValuta(t.date);
-
-    if (td.description != null)
-      VerwendungszweckUtil.applyCamt(umsatz,Arrays.asList(td.description));
-
-    ////////////////////////////////////////////////////////////////////////////
-    // Gegenkonto
-    if (td.senderAccount != null || td.senderName != null)
+    /////////////////////////////////////////
+    // Die Buchungen werden bereits waehrend des Empfangs konvertiert und mit den existierenden abgeglichen.
+    // Da wir das Datum der aeltesten Buchung hierbei noch nicht kennen, nehmen wir fuer den
+    // Abgleich das angefragte Startdatum.
+    final UmsatzIndex existing;
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
     {
-      HibiscusAddress e = (HibiscusAddress) de.willuhn.jameica.hbci.Settings.getDBService().createObject(HibiscusAddress.class,null);
-      e.setIban(td.senderAccount);
-
-      String name = td.senderName;
-      if (name != null && name.length() > HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH)
-        name = StringUtils.trimToEmpty(name.substring(0,HBCIProperties.HBCI_TRANSFER_NAME_MAXLENGTH));
-      e.setName(name);
-      umsatz.setGegenkonto(e);
+      final long loading = System.nanoTime();
+      existing = new UmsatzIndex(k.getUmsaetze(this.getMergeWindow(startDate,watermark != null),null));
+      Metrics.time("db.load",loading);
     }
-    //
-    ////////////////////////////////////////////////////////////////////////////
+    Logger.info("existing entries in merge window: " + existing.size());
+    
+    Logger.info("applying entries");
+    final UmsatzBatch batch = new UmsatzBatch(k);
+    final AtomicInteger skipped = new AtomicInteger();
+    final SyncWatermark newest = new SyncWatermark();
+    final AtomicLong converting = new AtomicLong();
+    final AtomicLong deduping = new AtomicLong();
+    int created = 0;
+    
+    final AccountStatement as;
+    try
+    {
+      final StatementLoader loader = new StatementLoader(this.transportService,new AccountResolver(this.transportService,k).getCredentials(),sb.toString(),params);
+      as = loader.load(startDate,DateUtil.endOfDay(new Date()),t -> {
+        // Die Buchung an der Markierung haben wir beim letzten Mal schon gespeichert
+        if (reference != null && reference.equals(t.referenceNumber))
+        {
+          newest.track(t);
+          skipped.incrementAndGet();
+          return;
+        }
+        
+        final long t0 = System.nanoTime();
+        final Umsatz umsatz = TransactionConverter.convert(t);
+        umsatz.setKonto(k);
+        newest.track(t);
+        final long t1 = System.nanoTime();
+        converting.addAndGet(t1 - t0);
 
-    return umsatz;
+        // Checken, ob wir den Umsatz schon haben
+        final boolean exists = existing.contains(umsatz);
+        deduping.addAndGet(System.nanoTime() - t1);
+        if (exists)
+        {
+          skipped.incrementAndGet(); // Haben wir schon
+          return;
+        }
+        
+        // den Umsatz haben wir noch nicht, speichern!
+        batch.add(t,umsatz);
+      });
+    }
+    finally
+    {
+      // Auch im Fehlerfall speichern wir die bis dahin empfangenen Umsaetze
+      created = batch.finish();
+      
+      final String id = "[" + k.getID() + "]";
+      Metrics.duration("sync.convert",converting.get());
+      Metrics.duration("sync.dedupe",deduping.get());
+      Metrics.count("sync.created" + id,created);
+      Metrics.count("sync.skipped" + id,skipped.get());
+      Metrics.time("sync.total",started);
+    }
+    /////////////////////////////////////////
+    
+    if (as != null)
+    {
+      // Im Replay-Modus stammt der Saldo aus dem Archiv und ist veraltet. Auch die Markierung
+      // lassen wir dann unveraendert, sie gilt fuer den regulaeren Abruf.
+      final boolean replay = this.archive.isReplay();
+      Amount saldo = replay ? null : as.endOfStatementBalance;
+      synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+      {
+        k.addToProtokoll(i18n.tr("Umsätze abgerufen"),Protokoll.TYP_SUCCESS);
+        
+        // Die Markierung verschieben wir nur, wenn alle Umsaetze gespeichert werden konnten.
+        // Andernfalls werden die fehlerhaften beim naechsten Mal erneut abgerufen.
+        if (!replay && batch.getFailed() == 0)
+          newest.store(k);
+        
+        if (saldo != null && saldo.value != null)
+        {
+          k.setSaldo(saldo.value.doubleValue());
+          k.store();
+        }
+      }
+      
+      if (saldo != null && saldo.value != null)
+        Application.getMessagingFactory().sendMessage(new SyncSaldoMessage(k));
+      
+      Logger.info("done. new entries: " + created + ", skipped entries (already in database): " + skipped.get());
+    }
+    else
+    {
+      Logger.info("got no new entries");
+    }
   }
   
   /**
-   * Entfernt Zeichen, die in den Strings nicht enthalten sein sollten.
-   * Typischerweise Zeilenumbrueche.
-   * @param s der String.
-   * @return der bereinigte String.
+   * Liefert das Startdatum fuer den Abgleich mit den existierenden Umsaetzen.
+   * @param startDate das von uns gesendete Startdatum. Wird in {@link AccountStatement} zwar auch nochmal zurueckgeliefert.
+   * Aber warum auf die Daten in der Antwort verlassen, wenn wir das Datum selbst kennen.
+   * @param incremental true, wenn das Startdatum aus der Markierung der letzten Synchronisierung stammt.
+   * @return das Startdatum. Kann NULL sein.
+   * @see MergeWindow#getStart(Date, boolean, int)
    */
-  private static String clean(String s)
+  private Date getMergeWindow(final Date startDate, final boolean incremental)
   {
-    return HBCIProperties.replace(s,HBCIProperties.TEXT_REPLACEMENTS_UMSATZ);
+    final Date d = MergeWindow.getStart(startDate,incremental,settings.getInt("umsatz.mergewindow.offset",-30));
+    if (d == null)
+      Logger.info("merge window: not set");
+    else
+      Logger.info("merge window: " + d + " - now (based on " + (incremental ? "sync watermark" : "last sync") + ")");
+    return d;
   }
 
+  
   /**
    * Liefert das zu verwendende Saldo-Datum.
    * @param k das Konto.
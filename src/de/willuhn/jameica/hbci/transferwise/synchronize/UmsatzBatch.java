@@ -0,0 +1,186 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.willuhn.jameica.hbci.messaging.ImportMessage;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.messaging.StatusBarMessage;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.I18N;
+
+/**
+ * Sammelt die neuen Umsaetze und speichert sie blockweise in jeweils einer Datenbank-Transaktion.
+ * Schlaegt das Speichern eines Blocks fehl, wird er zurueckgerollt und anschliessend Umsatz fuer
+ * Umsatz gespeichert, sodass nur die fehlerhaften Umsaetze uebersprungen werden.
+ * Die Import-Messages werden erst nach dem Speichern aller Bloecke versendet.
+ */
+public class UmsatzBatch
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+
+  private final Konto konto;
+  private final int chunkSize;
+
+  private final List<Transaction> pending = new ArrayList<Transaction>();
+  private final List<Umsatz> pendingUmsaetze = new ArrayList<Umsatz>();
+  private final List<Umsatz> stored = new ArrayList<Umsatz>();
+  private int failed = 0;
+
+  /**
+   * ct.
+   * @param konto das Konto, dem die Umsaetze zugeordnet werden.
+   */
+  public UmsatzBatch(Konto konto)
+  {
+    this.konto = konto;
+    this.chunkSize = Math.max(1,settings.getInt("sync.batch.size",100));
+  }
+
+  /**
+   * Fuegt einen neuen Umsatz hinzu. Ist der Block voll, wird er gespeichert.
+   * @param t die Buchung, aus der der Umsatz erzeugt wurde. Wird fuer den erneuten Versuch nach einem Rollback benoetigt.
+   * @param u der Umsatz.
+   */
+  public void add(Transaction t, Umsatz u)
+  {
+    this.pending.add(t);
+    this.pendingUmsaetze.add(u);
+    if (this.pending.size() >= this.chunkSize)
+      this.flush();
+  }
+
+  /**
+   * Speichert die restlichen Umsaetze und versendet anschliessend die Import-Messages.
+   * @return die Anzahl der gespeicherten Umsaetze.
+   */
+  public int finish()
+  {
+    this.flush();
+
+    for (Umsatz u:this.stored)
+    {
+      Application.getMessagingFactory().sendMessage(new ImportMessage(u));
+    }
+
+    if (this.failed > 0)
+      Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Nicht alle empfangenen Umsätze konnten gespeichert werden. Bitte prüfen Sie das System-Protokoll"),StatusBarMessage.TYPE_ERROR));
+
+    final int count = this.stored.size();
+    this.stored.clear();
+    return count;
+  }
+
+  /**
+   * Liefert die Anzahl der Umsaetze, die nicht gespeichert werden konnten.
+   * @return die Anzahl der Umsaetze, die nicht gespeichert werden konnten.
+   */
+  public int getFailed()
+  {
+    return this.failed;
+  }
+
+  /**
+   * Speichert den aktuellen Block.
+   * Die Datenbank-Transaktion bezieht sich auf die gemeinsame Verbindung. Werden mehrere Konten
+   * parallel synchronisiert, darf daher immer nur ein Block gleichzeitig gespeichert werden.
+   */
+  private void flush()
+  {
+    if (this.pending.size() == 0)
+      return;
+
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      this.flushLocked();
+    }
+  }
+
+  /**
+   * Speichert den aktuellen Block. Der Aufrufer haelt den Datenbank-Lock.
+   */
+  private void flushLocked()
+  {
+    final long started = System.nanoTime();
+    try
+    {
+      this.store();
+    }
+    finally
+    {
+      Metrics.time("db.store",started);
+    }
+  }
+  
+  /**
+   * Speichert den aktuellen Block in einer Transaktion bzw. nach einem Fehler einzeln.
+   */
+  private void store()
+  {
+    final List<Umsatz> chunk = new ArrayList<Umsatz>(this.pendingUmsaetze);
+    final List<Transaction> source = new ArrayList<Transaction>(this.pending);
+    this.pending.clear();
+    this.pendingUmsaetze.clear();
+
+    final Umsatz first = chunk.get(0);
+    try
+    {
+      first.transactionBegin();
+      for (Umsatz u:chunk)
+      {
+        u.store();
+      }
+      first.transactionCommit();
+      this.stored.addAll(chunk);
+      Logger.debug("stored chunk of " + chunk.size() + " entries");
+      return;
+    }
+    catch (Exception e)
+    {
+      Logger.warn("unable to store chunk of " + chunk.size() + " entries, retrying one by one: " + e.getMessage());
+      try
+      {
+        first.transactionRollback();
+      }
+      catch (Exception e2)
+      {
+        Logger.error("unable to rollback transaction",e2);
+      }
+    }
+
+    // Einzeln nochmal versuchen. Die Objekte aus dem zurueckgerollten Block haben
+    // ggf. bereits eine ID erhalten. Daher erzeugen wir sie neu.
+    for (Transaction t:source)
+    {
+      try
+      {
+        final Umsatz u = TransactionConverter.convert(t);
+        u.setKonto(this.konto);
+        u.store();
+        this.stored.add(u);
+      }
+      catch (Exception e)
+      {
+        Logger.error("error while adding umsatz, skipping this one",e);
+        this.failed++;
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.rmi.RemoteException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.jameica.hbci.rmi.Umsatz;
+
+/**
+ * Index ueber die bereits existierenden Umsaetze, um Duplikate ohne lineare Suche zu finden.
+ * Die Schluessel dienen nur der Vorauswahl der Kandidaten. Die eigentliche Pruefung erfolgt
+ * weiterhin per {@link Umsatz#equals(de.willuhn.datasource.GenericObject)}, damit sich
+ * die Semantik der Duplikat-Erkennung nicht aendert.
+ */
+public class UmsatzIndex
+{
+  private final Map<String,List<Umsatz>> byTransactionId = new HashMap<String,List<Umsatz>>();
+  private final Map<String,List<Umsatz>> byContent       = new HashMap<String,List<Umsatz>>();
+
+  private final DateFormat df = new SimpleDateFormat("yyyyMMdd");
+
+  private int size = 0;
+
+  /**
+   * ct.
+   * @param existing die existierenden Umsaetze. Kann NULL sein.
+   * @throws RemoteException
+   */
+  public UmsatzIndex(DBIterator existing) throws RemoteException
+  {
+    if (existing == null)
+      return;
+
+    while (existing.hasNext())
+    {
+      this.add((Umsatz) existing.next());
+    }
+  }
+
+  /**
+   * Fuegt einen Umsatz zum Index hinzu.
+   * @param u der Umsatz.
+   * @throws RemoteException
+   */
+  public void add(Umsatz u) throws RemoteException
+  {
+    if (u == null)
+      return;
+
+    final String id = StringUtils.trimToNull(u.getTransactionId());
+    if (id != null)
+      put(this.byTransactionId,id,u);
+
+    put(this.byContent,this.createKey(u),u);
+    this.size++;
+  }
+
+  /**
+   * Prueft, ob der Umsatz bereits im Index enthalten ist.
+   * @param u der zu pruefende Umsatz.
+   * @return true, wenn er bereits enthalten ist.
+   * @throws RemoteException
+   */
+  public boolean contains(Umsatz u) throws RemoteException
+  {
+    if (u == null || this.size == 0)
+      return false;
+
+    final String id = StringUtils.trimToNull(u.getTransactionId());
+    if (id != null && matches(this.byTransactionId.get(id),u))
+      return true;
+
+    // Fallback fuer existierende Umsaetze ohne Transaktions-ID
+    return matches(this.byContent.get(this.createKey(u)),u);
+  }
+
+  /**
+   * Liefert die Anzahl der Umsaetze im Index.
+   * @return die Anzahl der Umsaetze im Index.
+   */
+  public int size()
+  {
+    return this.size;
+  }
+
+  /**
+   * Erzeugt den Schluessel aus Datum, Betrag und Verwendungszweck.
+   * Leerzeichen werden entfernt, damit eine abweichende Zeilen-Aufteilung des
+   * Verwendungszwecks nicht zu einem anderen Schluessel fuehrt.
+   * @param u der Umsatz.
+   * @return der Schluessel.
+   * @throws RemoteException
+   */
+  private String createKey(Umsatz u) throws RemoteException
+  {
+    final StringBuilder sb = new StringBuilder();
+    final Date date = u.getDatum();
+    sb.append(date != null ? this.df.format(date) : "");
+    sb.append('|');
+    sb.append(Math.round(u.getBetrag() * 100d));
+    sb.append('|');
+    sb.append(StringUtils.trimToEmpty(u.getZweck()));
+    sb.append(StringUtils.trimToEmpty(u.getZweck2()));
+    final String[] more = u.getWeitereVerwendungszwecke();
+    if (more != null)
+    {
+      for (String s:more)
+      {
+        sb.append(StringUtils.trimToEmpty(s));
+      }
+    }
+    return StringUtils.deleteWhitespace(sb.toString());
+  }
+
+  /**
+   * Prueft, ob einer der Kandidaten dem Umsatz entspricht.
+   * @param candidates die Kandidaten. Kann NULL sein.
+   * @param u der Umsatz.
+   * @return true, wenn einer der Kandidaten passt.
+   * @throws RemoteException
+   */
+  private static boolean matches(List<Umsatz> candidates, Umsatz u) throws RemoteException
+  {
+    if (candidates == null)
+      return false;
+
+    for (Umsatz c:candidates)
+    {
+      if (c.equals(u))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Fuegt den Umsatz in die Map ein.
+   * @param map die Map.
+   * @param key der Schluessel.
+   * @param u der Umsatz.
+   */
+  private static void put(Map<String,List<Umsatz>> map, String key, Umsatz u)
+  {
+    List<Umsatz> list = map.get(key);
+    if (list == null)
+    {
+      list = new ArrayList<Umsatz>(1);
+      map.put(key,list);
+    }
+    list.add(u);
+  }
+}
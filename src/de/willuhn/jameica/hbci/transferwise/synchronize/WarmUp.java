@@ -0,0 +1,169 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.KeyStorage;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.SupportStatus;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.hbci.transferwise.transport.StatementArchive;
+import de.willuhn.jameica.hbci.transferwise.transport.TransportService;
+import de.willuhn.logging.Logger;
+
+/**
+ * Waermt nach dem Start von Jameica die Komponenten vor, die sonst erst bei der ersten
+ * Synchronisierung initialisiert werden: Die Jackson-Reader, das Wallet samt der Schluesselpaare
+ * der Konten und die Verbindung zum API-Endpunkt. Ausserdem wird das Archiv der Kontoauszuege
+ * aufgeraeumt. Die Schritte laufen parallel im Hintergrund.
+ * Ein Fehler wird nur geloggt, die erste Synchronisierung holt den Schritt dann nach.
+ */
+@Lifecycle(Type.CONTEXT)
+public class WarmUp
+{
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+  
+  @Resource private TransportService transportService;
+  @Resource private StatementArchive archive;
+  
+  private boolean started = false;
+  
+  /**
+   * Startet das Vorwaermen im Hintergrund.
+   */
+  public synchronized void start()
+  {
+    if (this.started)
+      return;
+    this.started = true;
+    
+    final Thread t = new Thread(this::run,"transferwise-warmup");
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  /**
+   * Fuehrt die Schritte parallel aus und wartet auf deren Ende.
+   */
+  private void run()
+  {
+    final long started = System.nanoTime();
+    Logger.info("starting transferwise warm-up");
+    
+    final ExecutorService executor = Executors.newFixedThreadPool(4,r -> {
+      final Thread t = new Thread(r,"transferwise-warmup-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    
+    try
+    {
+      final List<Future<?>> futures = new ArrayList<Future<?>>();
+      futures.add(executor.submit(() -> this.step("json",() -> {
+        this.transportService.preloadReaders();
+        return null;
+      })));
+      futures.add(executor.submit(() -> this.step("keys",this::loadKeys)));
+      futures.add(executor.submit(() -> this.step("connection",() -> {
+        this.transportService.preconnect();
+        return null;
+      })));
+      futures.add(executor.submit(() -> this.step("archive",() -> {
+        this.archive.cleanup();
+        return null;
+      })));
+      
+      for (Future<?> f:futures)
+      {
+        f.get();
+      }
+      Logger.info("transferwise warm-up done, took " + ((System.nanoTime() - started) / 1000000L) + " millis");
+      Metrics.time("warmup.total",started);
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (Exception e)
+    {
+      Logger.error("transferwise warm-up failed",e);
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+  
+  /**
+   * Fuehrt einen Schritt aus und erfasst dessen Dauer.
+   * @param name der Name des Schrittes.
+   * @param step der Schritt.
+   */
+  private void step(String name, Callable<?> step)
+  {
+    final long started = System.nanoTime();
+    try
+    {
+      final Object result = step.call();
+      Logger.info("warm-up " + name + " done" + (result != null ? " (" + result + ")" : "") + ", took " + ((System.nanoTime() - started) / 1000000L) + " millis");
+    }
+    catch (Exception e)
+    {
+      Logger.warn("warm-up " + name + " failed, took " + ((System.nanoTime() - started) / 1000000L) + " millis: " + e.getMessage());
+    }
+    finally
+    {
+      Metrics.time("warmup." + name,started);
+    }
+  }
+  
+  /**
+   * Laedt die Schluesselpaare der Transferwise-Konten und prueft deren Konfiguration.
+   * Damit sind Wallet, Security-Provider und der Cache des {@link SupportStatus} vorbereitet.
+   * @return Anzahl der geladenen Schluesselpaare.
+   * @throws Exception
+   */
+  private String loadKeys() throws Exception
+  {
+    int count = 0;
+    
+    // Eine Synchronisierung kann bereits laufen
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      final DBIterator<Konto> list = de.willuhn.jameica.hbci.Settings.getDBService().createList(Konto.class);
+      while (list.hasNext())
+      {
+        final Konto k = list.next();
+        final SupportStatus status = Plugin.getStatus(k);
+        if (!status.checkInitial())
+          continue;
+        
+        status.checkAll();
+        if (status.checkKeyPair() && KeyStorage.getKey(k) != null)
+          count++;
+      }
+    }
+    return count + " key pairs";
+  }
+}
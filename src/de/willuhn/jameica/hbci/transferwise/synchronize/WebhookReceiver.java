@@ -0,0 +1,505 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.synchronize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.datasource.rmi.DBIterator;
+import de.willuhn.jameica.hbci.HBCIProperties;
+import de.willuhn.jameica.hbci.rmi.Konto;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.webhooks.WebhookEvent;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.Base64;
+import de.willuhn.util.I18N;
+
+/**
+ * Empfaengt die Webhook-Benachrichtigungen von Transferwise ueber Aenderungen der Salden
+ * und ruft daraufhin nur das betroffene Konto ab.
+ * Die Signatur jeder Benachrichtigung wird mit dem in "webhook.publickey" hinterlegten
+ * oeffentlichen Schluessel von Transferwise geprueft. Doppelt zugestellte Benachrichtigungen
+ * werden anhand der Delivery-ID verworfen. Mehrere Benachrichtigungen fuer dasselbe Konto
+ * innerhalb von "webhook.debounce.seconds" fuehren zu nur einem Abruf. Laeuft gerade eine
+ * regulaere Synchronisierung, wird der Abruf um "webhook.defer.seconds" verschoben.
+ * Die HTTP-Requests und die Abrufe laufen in getrennten Thread-Pools, damit laufende Abrufe
+ * die Annahme weiterer Benachrichtigungen nicht blockieren.
+ */
+@Lifecycle(Type.CONTEXT)
+public class WebhookReceiver
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+  
+  /**
+   * Header mit der Signatur der Benachrichtigung.
+   */
+  public final static String HEADER_SIGNATURE = "X-Signature-SHA256";
+  
+  /**
+   * Header mit der eindeutigen ID der Zustellung.
+   */
+  public final static String HEADER_DELIVERY = "X-Delivery-Id";
+  
+  /**
+   * Header, mit dem Transferwise eine Test-Benachrichtigung kennzeichnet.
+   */
+  public final static String HEADER_TEST = "X-Test-Notification";
+
+  private final static String SIGN_ALG = "SHA256withRSA";
+  
+  @Resource private TransferwiseSynchronizeBackend backend;
+  
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Map<String,ScheduledFuture<?>> pending = new ConcurrentHashMap<String,ScheduledFuture<?>>();
+  private final Map<String,Boolean> delivered = new LinkedHashMap<String,Boolean>(16,0.75f,true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+     */
+    @Override
+    protected boolean removeEldestEntry(Entry<String,Boolean> eldest)
+    {
+      return this.size() > Math.max(1,settings.getInt("webhook.dedupe.size",1000));
+    }
+  };
+  
+  private PublicKey publicKey = null;
+  private HttpServer server = null;
+  private ExecutorService httpExecutor = null;
+  private ScheduledExecutorService executor = null;
+  
+  /**
+   * Startet den Empfang, falls er noch nicht laeuft.
+   * @throws ApplicationException
+   */
+  public synchronized void start() throws ApplicationException
+  {
+    if (this.server != null)
+      return;
+    
+    final String host = settings.getString("webhook.host","localhost");
+    final int port    = settings.getInt("webhook.port",8090);
+    final String path = settings.getString("webhook.path","/webhook");
+    
+    try
+    {
+      this.publicKey = this.loadPublicKey();
+      this.executor = Executors.newScheduledThreadPool(Math.max(1,settings.getInt("webhook.threads",2)),r -> {
+        final Thread t = new Thread(r,"transferwise-webhook-" + THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+
+      this.httpExecutor = Executors.newFixedThreadPool(Math.max(1,settings.getInt("webhook.http.threads",2)),r -> {
+        final Thread t = new Thread(r,"transferwise-webhook-http-" + THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+
+      final HttpServer s = HttpServer.create(new InetSocketAddress(host,port),0);
+      s.setExecutor(this.httpExecutor);
+      s.createContext(path,this::handle);
+      s.start();
+      this.server = s;
+      Logger.info("transferwise webhook receiver listening on " + host + ":" + port + path);
+    }
+    catch (ApplicationException ae)
+    {
+      this.stop();
+      throw ae;
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to start webhook receiver",e);
+      this.stop();
+      throw new ApplicationException(i18n.tr("Webhook-Empfang konnte nicht gestartet werden: {0}",e.getMessage()));
+    }
+  }
+  
+  /**
+   * Beendet den Empfang.
+   */
+  @PreDestroy
+  public synchronized void stop()
+  {
+    if (this.server != null)
+    {
+      Logger.info("stopping transferwise webhook receiver");
+      this.server.stop(0);
+      this.server = null;
+    }
+    if (this.httpExecutor != null)
+    {
+      this.httpExecutor.shutdownNow();
+      this.httpExecutor = null;
+    }
+    if (this.executor != null)
+    {
+      this.executor.shutdownNow();
+      this.executor = null;
+    }
+    this.pending.clear();
+  }
+  
+  /**
+   * Laedt den oeffentlichen Schluessel von Transferwise aus den Einstellungen.
+   * Er kann Base64-codiert oder im PEM-Format angegeben werden.
+   * @return der oeffentliche Schluessel.
+   * @throws Exception
+   */
+  private PublicKey loadPublicKey() throws Exception
+  {
+    String s = StringUtils.trimToNull(settings.getString("webhook.publickey",null));
+    if (s == null)
+      throw new ApplicationException(i18n.tr("Bitte hinterlegen Sie den öffentlichen Schlüssel von TransferWise für die Webhooks"));
+    
+    s = s.replaceAll("-----[A-Z ]+-----","");
+    s = StringUtils.deleteWhitespace(s);
+    return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(Base64.decode(s)));
+  }
+  
+  /**
+   * Verarbeitet eine Benachrichtigung.
+   * Wir antworten sofort. Der Abruf erfolgt asynchron, damit Transferwise die Zustellung nicht wiederholt.
+   * @param exchange der Request.
+   * @throws IOException
+   */
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    String accepted = null;
+    try
+    {
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+      {
+        this.send(exchange,405);
+        return;
+      }
+      
+      // Die Groesse begrenzen wir, bevor wir die Signatur pruefen koennen
+      final int max = Math.max(1,settings.getInt("webhook.body.max.bytes",64 * 1024));
+      final String length = StringUtils.trimToNull(exchange.getRequestHeaders().getFirst("Content-Length"));
+      if (length != null && (!StringUtils.isNumeric(length) || Long.parseLong(length) > max))
+      {
+        Logger.warn("webhook from " + exchange.getRemoteAddress() + " with content length " + length + " rejected");
+        this.send(exchange,413);
+        return;
+      }
+      
+      final byte[] body = this.read(exchange.getRequestBody(),max);
+      if (body == null)
+      {
+        Logger.warn("webhook from " + exchange.getRemoteAddress() + " exceeds " + max + " bytes, rejected");
+        this.send(exchange,413);
+        return;
+      }
+      
+      if (!this.verify(body,exchange.getRequestHeaders().getFirst(HEADER_SIGNATURE)))
+      {
+        Logger.warn("webhook with invalid signature from " + exchange.getRemoteAddress() + " rejected");
+        this.send(exchange,401);
+        return;
+      }
+      
+      if (Boolean.parseBoolean(exchange.getRequestHeaders().getFirst(HEADER_TEST)))
+      {
+        Logger.info("received webhook test notification");
+        this.send(exchange,200);
+        return;
+      }
+      
+      String id = StringUtils.trimToNull(exchange.getRequestHeaders().getFirst(HEADER_DELIVERY));
+      if (id == null)
+        id = this.hash(body);
+      
+      synchronized (this.delivered)
+      {
+        if (this.delivered.put(id,Boolean.TRUE) != null)
+        {
+          Logger.debug("duplicate webhook delivery " + id + ", skipping");
+          this.send(exchange,200);
+          return;
+        }
+      }
+      
+      // Bis die Benachrichtigung uebergeben ist, gilt sie nur als angenommen. Schlaegt etwas fehl,
+      // vergessen wir die ID wieder, damit eine erneute Zustellung nicht als Duplikat verworfen wird.
+      accepted = id;
+      final WebhookEvent event = this.mapper.readValue(body,WebhookEvent.class);
+      
+      final ScheduledExecutorService ex = this.executor;
+      if (ex == null)
+      {
+        Logger.warn("webhook receiver stopped, rejecting webhook delivery " + id);
+        this.forget(id);
+        this.send(exchange,503);
+        return;
+      }
+      
+      // Das Ermitteln der Konten greift auf die Datenbank zu. Das machen wir nicht im HTTP-Thread.
+      final String delivery = id;
+      ex.execute(() -> {
+        try
+        {
+          this.dispatch(event);
+        }
+        catch (Exception e)
+        {
+          Logger.error("unable to dispatch webhook delivery " + delivery,e);
+          this.forget(delivery);
+        }
+      });
+      accepted = null;
+      this.send(exchange,200);
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to process webhook",e);
+      if (accepted != null)
+        this.forget(accepted);
+      if (exchange.getResponseCode() == -1)
+        this.send(exchange,500);
+    }
+    finally
+    {
+      exchange.close();
+    }
+  }
+  
+  /**
+   * Prueft die Signatur der Benachrichtigung.
+   * @param body der Inhalt.
+   * @param signature die Base64-codierte Signatur.
+   * @return true, wenn die Signatur gueltig ist.
+   * @throws Exception
+   */
+  private boolean verify(byte[] body, String signature) throws Exception
+  {
+    if (StringUtils.trimToNull(signature) == null)
+      return false;
+    
+    final Signature sig = Signature.getInstance(SIGN_ALG);
+    sig.initVerify(this.publicKey);
+    sig.update(body);
+    try
+    {
+      return sig.verify(Base64.decode(signature.trim()));
+    }
+    catch (Exception e)
+    {
+      Logger.debug("unable to verify signature: " + e.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * Ermittelt die betroffenen Konten und plant deren Abruf.
+   * @param event das Ereignis.
+   * @throws Exception
+   */
+  private void dispatch(WebhookEvent event) throws Exception
+  {
+    if (event == null || event.data == null || event.data.resource == null || event.data.resource.profileId == null)
+    {
+      Logger.info("ignoring webhook without profile");
+      return;
+    }
+    
+    final String type = event.eventType;
+    if (type == null || !type.startsWith("balances#"))
+    {
+      Logger.info("ignoring webhook of type " + type);
+      return;
+    }
+    
+    final String profile = event.data.resource.profileId.toString();
+    final String account = event.data.resource.id != null ? event.data.resource.id.toString() : null;
+    final String curr    = StringUtils.trimToNull(event.data.currency);
+    
+    // Je nach Version des Formats enthaelt die Ressource die ID des Accounts oder des Saldos.
+    // Wir suchen daher zuerst nach dem Account. Gibt es keinen Treffer, nehmen wir alle Konten
+    // des Profils in der Waehrung.
+    final List<Konto> byAccount = new ArrayList<Konto>();
+    final List<Konto> byProfile = new ArrayList<Konto>();
+    synchronized (TransferwiseSynchronizeBackend.DB_LOCK)
+    {
+      final DBIterator<Konto> list = de.willuhn.jameica.hbci.Settings.getDBService().createList(Konto.class);
+      while (list.hasNext())
+      {
+        final Konto k = list.next();
+        if (!profile.equals(k.getMeta(Plugin.META_PARAM_PROFILE,null)) || !Plugin.getStatus(k).checkSyncProvider())
+          continue;
+      
+        final String kc = StringUtils.trimToNull(k.getWaehrung());
+        if (curr != null && !curr.equalsIgnoreCase(kc != null ? kc : HBCIProperties.CURRENCY_DEFAULT_DE))
+          continue;
+      
+        byProfile.add(k);
+        if (account != null && account.equals(k.getMeta(Plugin.META_PARAM_ACCOUNT,null)))
+          byAccount.add(k);
+      }
+    }
+    
+    final List<Konto> targets = byAccount.size() > 0 ? byAccount : byProfile;
+    if (targets.size() == 0)
+    {
+      Logger.info("no konto found for webhook " + type + " [profile " + profile + ", resource " + account + ", currency " + curr + "]");
+      return;
+    }
+    
+    for (Konto k:targets)
+    {
+      this.schedule(k,Math.max(0,settings.getInt("webhook.debounce.seconds",5)));
+    }
+  }
+  
+  /**
+   * Plant den Abruf des Kontos. Ist bereits ein Abruf geplant, wird das Ereignis mit diesem zusammengefasst.
+   * Ereignisse waehrend eines laufenden Abrufs fuehren zu einem weiteren Abruf nach Ablauf der Wartezeit.
+   * @param k das Konto.
+   * @param delay die Wartezeit in Sekunden.
+   * @throws Exception
+   */
+  private synchronized void schedule(Konto k, int delay) throws Exception
+  {
+    if (this.executor == null)
+      return;
+    
+    final String id = k.getID();
+    if (this.pending.containsKey(id))
+    {
+      Logger.debug("sync of konto id " + id + " already scheduled");
+      return;
+    }
+    
+    Logger.info("scheduling sync of konto id " + id + " in " + delay + " seconds");
+    this.pending.put(id,this.executor.schedule(() -> {
+      this.pending.remove(id);
+      try
+      {
+        // Waehrend einer regulaeren Synchronisierung rufen wir nicht ab. Sie verteilt die Konten
+        // selbst auf ihre Jobs. Wir versuchen es spaeter erneut.
+        if (this.backend.isRunning())
+        {
+          Logger.info("synchronization in progress, deferring sync of konto id " + id);
+          this.schedule(k,Math.max(1,settings.getInt("webhook.defer.seconds",30)));
+          return;
+        }
+        
+        this.backend.executeKonto(k,true);
+      }
+      catch (ApplicationException ae)
+      {
+        Logger.warn("sync of konto id " + id + " failed: " + ae.getMessage());
+      }
+      catch (OperationCanceledException oce)
+      {
+        Logger.info("sync of konto id " + id + " cancelled");
+      }
+      catch (Exception e)
+      {
+        Logger.error("sync of konto id " + id + " failed",e);
+      }
+    },delay,TimeUnit.SECONDS));
+  }
+  
+  /**
+   * Liest den Inhalt des Requests.
+   * @param is der Stream.
+   * @param max die maximale Anzahl Bytes.
+   * @return der Inhalt oder NULL, wenn er groesser als erlaubt ist.
+   * @throws IOException
+   */
+  private byte[] read(InputStream is, int max) throws IOException
+  {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final byte[] buf = new byte[4096];
+    int read = 0;
+    while ((read = is.read(buf)) != -1)
+    {
+      if (bos.size() + read > max)
+        return null;
+      bos.write(buf,0,read);
+    }
+    return bos.toByteArray();
+  }
+  
+  /**
+   * Entfernt die ID einer Zustellung, die nicht verarbeitet werden konnte.
+   * @param id die ID der Zustellung.
+   */
+  private void forget(String id)
+  {
+    synchronized (this.delivered)
+    {
+      this.delivered.remove(id);
+    }
+  }
+  
+  /**
+   * Erzeugt einen Hash ueber den Inhalt, falls keine Delivery-ID mitgesendet wurde.
+   * @param body der Inhalt.
+   * @return der Hash.
+   * @throws Exception
+   */
+  private String hash(byte[] body) throws Exception
+  {
+    return Base64.encode(MessageDigest.getInstance("SHA-256").digest(body));
+  }
+  
+  /**
+   * Sendet eine leere Antwort.
+   * @param exchange der Request.
+   * @param status der HTTP-Status.
+   * @throws IOException
+   */
+  private void send(HttpExchange exchange, int status) throws IOException
+  {
+    exchange.sendResponseHeaders(status,-1);
+  }
+}
@@ -0,0 +1,155 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Account;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Balance;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.BankDetails;
+
+/**
+ * Ermittelt den Account von Transferwise, der zu einer IBAN gehoert.
+ * Fuer einzelne Abfragen genuegt {@link #find(Account[], String)}. Sollen mehrere Konten
+ * zugeordnet werden, baut der Konstruktor einmalig einen Index ueber alle Waehrungen auf.
+ */
+public class AccountMatcher
+{
+  private final Map<String,Match> index = new HashMap<String,Match>();
+  
+  /**
+   * ct.
+   * Erzeugt den Index ueber die IBANs bzw. Kontonummern aller Waehrungen.
+   * @param accounts die Accounts von Transferwise.
+   */
+  public AccountMatcher(Account[] accounts)
+  {
+    if (accounts == null)
+      return;
+    
+    for (Account a:accounts)
+    {
+      if (a == null || a.id == null || a.balances == null)
+        continue;
+      
+      for (Balance b:a.balances)
+      {
+        final String iban = getIban(b);
+        
+        // Wie bei der linearen Suche gewinnt der erste Treffer
+        if (iban != null)
+          this.index.putIfAbsent(iban.toUpperCase(),new Match(a.id.toString(),b.currency));
+      }
+    }
+  }
+  
+  /**
+   * Liefert den Account zur IBAN.
+   * @param iban die IBAN bzw. Kontonummer. Leerzeichen und Gross-/Kleinschreibung spielen keine Rolle.
+   * @return der Account oder NULL, wenn keiner passt.
+   */
+  public Match get(String iban)
+  {
+    iban = StringUtils.trimToNull(StringUtils.deleteWhitespace(iban));
+    return iban != null ? this.index.get(iban.toUpperCase()) : null;
+  }
+  
+  /**
+   * Liefert die Anzahl der IBANs im Index.
+   * @return die Anzahl der IBANs im Index.
+   */
+  public int size()
+  {
+    return this.index.size();
+  }
+  
+  /**
+   * Sucht den Account mit der angegebenen IBAN.
+   * @param accounts die Accounts von Transferwise.
+   * @param iban die IBAN.
+   * @return die ID des ersten Accounts mit der IBAN oder NULL, wenn keiner passt.
+   */
+  public static String find(Account[] accounts, String iban)
+  {
+    if (accounts == null)
+      return null;
+    
+    iban = StringUtils.trimToEmpty(iban).replace(" ","");
+    
+    // Wir iterieren ueber die Konten und nehmen das erste, bei dem die IBAN passt
+    for (Account a:accounts)
+    {
+      if (a == null || a.id == null)
+        continue;
+      
+      List<Balance> balances = a.balances;
+      if (balances == null || balances.size() == 0)
+        continue;
+      
+      for (Balance b:balances)
+      {
+        String test = getIban(b);
+        if (test != null && test.equalsIgnoreCase(iban))
+          return a.id.toString();
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Liefert die IBAN der Waehrung ohne Leerzeichen.
+   * @param b die Waehrung des Accounts.
+   * @return die IBAN bzw. ersatzweise die Kontonummer oder NULL, wenn keine hinterlegt ist.
+   */
+  static String getIban(Balance b)
+  {
+    BankDetails detail = b != null ? b.bankDetails : null;
+    if (detail == null)
+      return null;
+
+    String test = StringUtils.trimToNull(detail.iban);
+    if (test == null)
+      test = StringUtils.trimToNull(detail.accountNumber); // Fallback
+    
+    return test != null ? test.replace(" ","") : null;
+  }
+  
+  /**
+   * Ein Treffer im Index.
+   */
+  public static class Match
+  {
+    /**
+     * Die ID des Accounts.
+     */
+    public final String id;
+    
+    /**
+     * Die Waehrung, zu der die IBAN gehoert.
+     */
+    public final String currency;
+    
+    /**
+     * ct.
+     * @param id die ID des Accounts.
+     * @param currency die Waehrung.
+     */
+    private Match(String id, String currency)
+    {
+      this.id       = id;
+      this.currency = currency;
+    }
+  }
+}
@@ -23,7 +23,12 @@ public enum ApiEndpoint
   /**
    * Live-Umgebung.
    */
-  LIVE("api.transferwise.com")
+  LIVE("api.transferwise.com"),
+  
+  /**
+   * Lokaler Endpunkt fuer Tests. Schema, Host und Port werden per Settings konfiguriert.
+   */
+  LOCAL(null),
   
   ;
   
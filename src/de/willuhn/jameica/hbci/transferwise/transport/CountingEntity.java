@@ -0,0 +1,78 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+
+/**
+ * Zaehlt die Bytes, die aus dem Inhalt der Antwort gelesen werden.
+ */
+class CountingEntity extends HttpEntityWrapper
+{
+  private long count = 0L;
+  
+  /**
+   * ct.
+   * @param entity der Inhalt der Antwort.
+   */
+  CountingEntity(HttpEntity entity)
+  {
+    super(entity);
+  }
+  
+  /**
+   * @see org.apache.hc.core5.http.io.entity.HttpEntityWrapper#getContent()
+   */
+  @Override
+  public InputStream getContent() throws IOException
+  {
+    return new FilterInputStream(super.getContent())
+    {
+      /**
+       * @see java.io.FilterInputStream#read()
+       */
+      @Override
+      public int read() throws IOException
+      {
+        final int b = super.read();
+        if (b != -1)
+          count++;
+        return b;
+      }
+      
+      /**
+       * @see java.io.FilterInputStream#read(byte[], int, int)
+       */
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        final int n = super.read(b,off,len);
+        if (n > 0)
+          count += n;
+        return n;
+      }
+    };
+  }
+  
+  /**
+   * Liefert die Anzahl der gelesenen Bytes.
+   * @return die Anzahl der gelesenen Bytes.
+   */
+  long getCount()
+  {
+    return this.count;
+  }
+}
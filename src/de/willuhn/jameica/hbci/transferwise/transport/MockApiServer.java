@@ -0,0 +1,578 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.ApiError;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Account;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.Balance;
+import de.willuhn.jameica.hbci.transferwise.domain.accounts.BankDetails;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Amount;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.TransactionDetails;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.TransactionDetailsType;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.TransactionType;
+import de.willuhn.jameica.hbci.transferwise.domain.profiles.ProfileDetails;
+import de.willuhn.jameica.hbci.transferwise.domain.profiles.UserProfile;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Eingebetteter Mock der Transferwise-API fuer Last- und Latenz-Tests ohne Internet-Verbindung.
+ * Wird nur gestartet, wenn der Endpunkt {@link ApiEndpoint#LOCAL} konfiguriert und der Mock aktiviert ist.
+ * Die Daten werden generiert. Sie sind deterministisch, damit wiederholte Abrufe dieselben Buchungen liefern.
+ */
+@Lifecycle(Type.CONTEXT)
+public class MockApiServer
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  private final static Pattern PATTERN_STATEMENT = Pattern.compile("^/v3/profiles/(\\d+)/borderless-accounts/(\\d+)/statement\\.json$");
+
+  private final static int PROFILE_OFFSET = 1000;
+  private final static int ACCOUNT_OFFSET = 2000;
+  
+  private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Set<String> tokens = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+  
+  private HttpServer server = null;
+  private ExecutorService executor = null;
+  
+  /**
+   * Startet den Server, falls er noch nicht laeuft.
+   * @param host der Hostname.
+   * @param port der TCP-Port.
+   * @throws IOException
+   */
+  public synchronized void start(String host, int port) throws IOException
+  {
+    if (this.server != null)
+      return;
+
+    Logger.warn("starting transferwise mock api server on " + host + ":" + port + " - for testing only");
+    this.executor = Executors.newCachedThreadPool(r -> {
+      final Thread t = new Thread(r,"transferwise-mock-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    
+    final HttpServer s = HttpServer.create(new InetSocketAddress(host,port),0);
+    s.setExecutor(this.executor);
+    s.createContext("/",this::handle);
+    s.start();
+    this.server = s;
+    
+    for (String iban:this.getIbans())
+    {
+      Logger.info("mock api account: " + iban);
+    }
+  }
+  
+  /**
+   * Stoppt den Server.
+   */
+  public synchronized void stop()
+  {
+    if (this.server == null)
+      return;
+    
+    Logger.info("stopping transferwise mock api server");
+    try
+    {
+      this.server.stop(0);
+      this.executor.shutdownNow();
+    }
+    finally
+    {
+      this.server = null;
+      this.executor = null;
+      this.tokens.clear();
+    }
+  }
+  
+  /**
+   * Verarbeitet einen Request.
+   * @param exchange der Request.
+   * @throws IOException
+   */
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    try
+    {
+      this.delay();
+
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      if (random.nextDouble() < settings.getDouble("mock.throttle.rate",0d))
+      {
+        exchange.getResponseHeaders().add("Retry-After","1");
+        this.sendError(exchange,429,"too_many_requests","Rate limit exceeded");
+        return;
+      }
+      if (random.nextDouble() < settings.getDouble("mock.error.rate",0d))
+      {
+        this.sendError(exchange,500,"internal_error","Simulated server error");
+        return;
+      }
+      
+      final URI uri = exchange.getRequestURI();
+      final String path = uri.getPath();
+      final Map<String,String> params = parse(uri.getRawQuery());
+      
+      if ("/v1/profiles".equals(path))
+      {
+        this.sendCacheable(exchange,this.getProfiles());
+        return;
+      }
+      
+      if ("/v1/borderless-accounts".equals(path))
+      {
+        this.sendCacheable(exchange,this.getAccounts(params.get("profileId")));
+        return;
+      }
+      
+      final Matcher m = PATTERN_STATEMENT.matcher(path);
+      if (m.matches())
+      {
+        if (!this.checkSca(exchange))
+          return;
+        
+        final AccountStatement as = this.getStatement(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)),params);
+        if (as == null)
+        {
+          this.sendError(exchange,404,"not_found","Unknown account");
+          return;
+        }
+        this.send(exchange,as);
+        return;
+      }
+      
+      this.sendError(exchange,404,"not_found","Unknown path " + path);
+    }
+    catch (Exception e)
+    {
+      Logger.error("error in mock api server",e);
+      this.sendError(exchange,500,"internal_error",e.getMessage());
+    }
+    finally
+    {
+      exchange.close();
+    }
+  }
+  
+  /**
+   * Simuliert die Latenz.
+   * @throws InterruptedException
+   */
+  private void delay() throws InterruptedException
+  {
+    final int latency = settings.getInt("mock.latency.millis",0);
+    final int jitter  = settings.getInt("mock.jitter.millis",0);
+    final long millis = latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+    if (millis > 0)
+      Thread.sleep(millis);
+  }
+  
+  /**
+   * Simuliert die SCA-Anforderung. Ein Request ohne signierten Token wird mit 403 abgelehnt
+   * und erhaelt einen neuen Token. Der Token ist nur einmal gueltig, sofern nicht per "mock.sca.reuse"
+   * die Wiederverwendung erlaubt ist. Die Signatur wird nicht geprueft, da der Mock den oeffentlichen
+   * Schluessel nicht kennt.
+   * @param exchange der Request.
+   * @return true, wenn der Request ausgefuehrt werden darf.
+   * @throws IOException
+   */
+  private boolean checkSca(HttpExchange exchange) throws IOException
+  {
+    if (!settings.getBoolean("mock.sca.enabled",true))
+      return true;
+    
+    final String token = exchange.getRequestHeaders().getFirst("X-2FA-Approval");
+    final String sig   = exchange.getRequestHeaders().getFirst("X-Signature");
+    if (token != null && StringUtils.trimToNull(sig) != null)
+    {
+      final boolean valid = settings.getBoolean("mock.sca.reuse",false) ? this.tokens.contains(token) : this.tokens.remove(token);
+      if (valid)
+        return true;
+    }
+    
+    final String s = UUID.randomUUID().toString();
+    this.tokens.add(s);
+    exchange.getResponseHeaders().add("X-2FA-Approval-Result","REJECTED");
+    exchange.getResponseHeaders().add("X-2FA-Approval",s);
+    this.sendError(exchange,403,"sca_required","Strong customer authentication required");
+    return false;
+  }
+  
+  /**
+   * Liefert die Profile.
+   * @return die Profile.
+   */
+  private List<UserProfile> getProfiles()
+  {
+    final List<UserProfile> result = new ArrayList<UserProfile>();
+    for (int i=0;i<this.getProfileCount();++i)
+    {
+      final UserProfile p = new UserProfile();
+      p.id = PROFILE_OFFSET + i;
+      p.type = "personal";
+      p.details = new ProfileDetails();
+      p.details.firstName = "Mock";
+      p.details.lastName = "Profile " + i;
+      result.add(p);
+    }
+    return result;
+  }
+  
+  /**
+   * Liefert die Accounts des Profils.
+   * Die Accounts werden reihum auf die Profile verteilt. Der Saldo jeder Waehrung entspricht
+   * dem Schluss-Saldo des Kontoauszuges vom Beginn des Tages bis jetzt.
+   * @param profileId die ID des Profils.
+   * @return die Accounts.
+   * @throws Exception
+   */
+  private List<Account> getAccounts(String profileId) throws Exception
+  {
+    final DateFormat df = new SimpleDateFormat(Plugin.DATEFORMAT);
+    df.setTimeZone(TimeZone.getTimeZone(Plugin.TIMEZONE));
+    final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(Plugin.TIMEZONE));
+    final Date now = cal.getTime();
+    cal.set(Calendar.HOUR_OF_DAY,0);
+    cal.set(Calendar.MINUTE,0);
+    cal.set(Calendar.SECOND,0);
+    cal.set(Calendar.MILLISECOND,0);
+    
+    final Map<String,String> interval = new HashMap<String,String>();
+    interval.put("intervalStart",df.format(cal.getTime()));
+    interval.put("intervalEnd",df.format(now));
+
+    final List<Account> result = new ArrayList<Account>();
+    final int profile = profileId != null ? Integer.parseInt(profileId) - PROFILE_OFFSET : 0;
+    final List<String> ibans = this.getIbans();
+    final String[] currencies = this.getCurrencies();
+    for (int i=0;i<ibans.size();++i)
+    {
+      if (i % this.getProfileCount() != profile)
+        continue;
+      
+      final Account a = new Account();
+      a.id = ACCOUNT_OFFSET + i;
+      for (String curr:currencies)
+      {
+        final Balance b = new Balance();
+        b.currency = curr;
+        b.bankDetails = new BankDetails();
+        b.bankDetails.iban = ibans.get(i);
+        
+        final Map<String,String> params = new HashMap<String,String>(interval);
+        params.put("currency",curr);
+        b.amount = this.getStatement(profile + PROFILE_OFFSET,a.id,params).endOfStatementBalance;
+        a.balances.add(b);
+      }
+      result.add(a);
+    }
+    return result;
+  }
+  
+  /**
+   * Erzeugt den Kontoauszug.
+   * @param profile die ID des Profils.
+   * @param account die ID des Accounts.
+   * @param params die Parameter des Requests.
+   * @return der Kontoauszug oder NULL, wenn der Account nicht existiert.
+   * @throws Exception
+   */
+  private AccountStatement getStatement(int profile, int account, Map<String,String> params) throws Exception
+  {
+    final int index = account - ACCOUNT_OFFSET;
+    if (index < 0 || index >= this.getIbans().size() || index % this.getProfileCount() != profile - PROFILE_OFFSET)
+      return null;
+    
+    final DateFormat df = new SimpleDateFormat(Plugin.DATEFORMAT);
+    df.setTimeZone(TimeZone.getTimeZone(Plugin.TIMEZONE));
+    final Date start = df.parse(params.get("intervalStart"));
+    final Date end   = df.parse(params.get("intervalEnd"));
+    final String curr = StringUtils.trimToNull(params.get("currency")) != null ? params.get("currency") : "EUR";
+    final int perDay = settings.getInt("mock.transactions.per.day",5);
+
+    final AccountStatement as = new AccountStatement();
+
+    final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(Plugin.TIMEZONE));
+    cal.setTime(start);
+    cal.set(Calendar.HOUR_OF_DAY,0);
+    cal.set(Calendar.MINUTE,0);
+    cal.set(Calendar.SECOND,0);
+    cal.set(Calendar.MILLISECOND,0);
+
+    // Die Buchungen eines Tages gleichen sich aus. Damit beginnt jeder Tag mit demselben Saldo
+    // und die Salden sind unabhaengig vom abgefragten Zeitraum stimmig.
+    final BigDecimal opening = BigDecimal.valueOf(1000000L,2);
+    BigDecimal balance = opening;
+    while (!cal.getTime().after(end))
+    {
+      final long day = cal.getTimeInMillis() / 86400000L;
+      final Random r = new Random(account * 31L + day);
+      BigDecimal running = opening;
+      for (int i=0;i<perDay;++i)
+      {
+        final Date date = new Date(cal.getTimeInMillis() + (i + 1) * (86400000L / (perDay + 1)));
+        final BigDecimal value = (i > 0 && i == perDay - 1) ? opening.subtract(running) : BigDecimal.valueOf(r.nextInt(200000) - 100000 + 1,2);
+        running = running.add(value);
+        if (date.before(start) || date.after(end))
+          continue;
+        
+        balance = running;
+        as.transactions.add(this.createTransaction(account,day,i,date,value,running,curr));
+      }
+      cal.add(Calendar.DATE,1);
+    }
+    
+    as.endOfStatementBalance = amount(balance,curr);
+    return as;
+  }
+  
+  /**
+   * Erzeugt eine Buchung.
+   * @param account die ID des Accounts.
+   * @param day der Tag.
+   * @param i die laufende Nummer am Tag.
+   * @param date das Datum.
+   * @param value der Betrag.
+   * @param balance der Saldo nach der Buchung.
+   * @param curr die Waehrung.
+   * @return die Buchung.
+   */
+  private Transaction createTransaction(int account, long day, int i, Date date, BigDecimal value, BigDecimal balance, String curr)
+  {
+    final Transaction t = new Transaction();
+    t.type = value.signum() < 0 ? TransactionType.DEBIT : TransactionType.CREDIT;
+    t.date = date;
+    t.amount = amount(value,curr);
+    t.totalFees = amount(BigDecimal.ZERO,curr);
+    t.runningBalance = amount(balance,curr);
+    t.referenceNumber = "MOCK-" + account + "-" + day + "-" + i;
+    
+    final TransactionDetails td = new TransactionDetails();
+    td.type = TransactionDetailsType.TRANSFER;
+    td.description = "Mock-Buchung " + t.referenceNumber;
+    td.senderName = "Mock Sender " + (i % 10);
+    td.senderAccount = String.format("DE02100000000000%06d",i);
+    td.paymentReference = t.referenceNumber;
+    t.details = td;
+    return t;
+  }
+  
+  /**
+   * Sendet die Antwort als JSON.
+   * @param exchange der Request.
+   * @param data die Daten.
+   * @throws IOException
+   */
+  private void send(HttpExchange exchange, Object data) throws IOException
+  {
+    exchange.getResponseHeaders().add("Content-Type","application/json;charset=UTF-8");
+    exchange.sendResponseHeaders(200,0);
+    try (OutputStream os = exchange.getResponseBody())
+    {
+      this.mapper.writeValue(os,data);
+    }
+  }
+  
+  /**
+   * Sendet die Antwort als JSON mit ETag.
+   * Stimmt der ETag mit "If-None-Match" ueberein, wird nur "304 Not Modified" gesendet.
+   * @param exchange der Request.
+   * @param data die Daten.
+   * @throws IOException
+   */
+  private void sendCacheable(HttpExchange exchange, Object data) throws IOException
+  {
+    final byte[] body = this.mapper.writeValueAsBytes(data);
+    final String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+    exchange.getResponseHeaders().add("ETag",etag);
+    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+    {
+      exchange.sendResponseHeaders(304,-1);
+      return;
+    }
+    
+    exchange.getResponseHeaders().add("Content-Type","application/json;charset=UTF-8");
+    exchange.sendResponseHeaders(200,body.length);
+    try (OutputStream os = exchange.getResponseBody())
+    {
+      os.write(body);
+    }
+  }
+  
+  /**
+   * Sendet einen Fehler.
+   * @param exchange der Request.
+   * @param status der HTTP-Status.
+   * @param error der Fehler-Code.
+   * @param message der Fehlertext.
+   * @throws IOException
+   */
+  private void sendError(HttpExchange exchange, int status, String error, String message) throws IOException
+  {
+    final ApiError e = new ApiError();
+    e.timestamp = new Date();
+    e.status = status;
+    e.error = error;
+    e.message = message;
+    e.path = exchange.getRequestURI().getPath();
+    
+    final byte[] data = this.mapper.writeValueAsBytes(e);
+    exchange.getResponseHeaders().add("Content-Type","application/json;charset=UTF-8");
+    exchange.sendResponseHeaders(status,data.length);
+    try (OutputStream os = exchange.getResponseBody())
+    {
+      os.write(data);
+    }
+  }
+  
+  /**
+   * Liefert die IBANs der Accounts.
+   * Sind keine per "mock.ibans" konfiguriert, werden so viele generiert, wie in "mock.accounts" angegeben.
+   * @return die IBANs.
+   */
+  private List<String> getIbans()
+  {
+    final List<String> result = new ArrayList<String>();
+    final String[] list = settings.getList("mock.ibans",null);
+    if (list != null && list.length > 0)
+    {
+      for (String s:list)
+      {
+        if (StringUtils.trimToNull(s) != null)
+          result.add(s.trim());
+      }
+      return result;
+    }
+
+    final int count = settings.getInt("mock.accounts",20);
+    for (int i=0;i<count;++i)
+    {
+      result.add(createIban(i));
+    }
+    return result;
+  }
+  
+  /**
+   * Erzeugt eine gueltige belgische IBAN inclusive Pruefziffern, da Hibiscus die IBAN des Kontos prueft.
+   * @param i die laufende Nummer des Accounts.
+   * @return die IBAN.
+   */
+  private static String createIban(int i)
+  {
+    final long nr = 9670000000L + i;
+    final long check = nr % 97L == 0 ? 97L : nr % 97L;
+    final String bban = String.format("%010d%02d",nr,check);
+    
+    // "BE00" ans Ende, Buchstaben als Zahlen: B=11, E=14
+    final int mod = new BigInteger(bban + "111400").mod(BigInteger.valueOf(97)).intValue();
+    return String.format("BE%02d%s",98 - mod,bban);
+  }
+  
+  /**
+   * Liefert die Anzahl der Profile.
+   * @return die Anzahl der Profile.
+   */
+  private int getProfileCount()
+  {
+    return Math.max(1,settings.getInt("mock.profiles",1));
+  }
+  
+  /**
+   * Liefert die Waehrungen, die jeder Account hat.
+   * @return die Waehrungen.
+   */
+  private String[] getCurrencies()
+  {
+    return settings.getList("mock.currencies",new String[]{"EUR"});
+  }
+  
+  /**
+   * Erzeugt einen Betrag.
+   * @param value der Wert.
+   * @param curr die Waehrung.
+   * @return der Betrag.
+   */
+  private static Amount amount(BigDecimal value, String curr)
+  {
+    final Amount a = new Amount();
+    a.value = value;
+    a.currency = curr;
+    return a;
+  }
+  
+  /**
+   * Parst die Query-Parameter.
+   * @param query die Query.
+   * @return die Parameter.
+   * @throws IOException
+   */
+  private static Map<String,String> parse(String query) throws IOException
+  {
+    final Map<String,String> result = new HashMap<String,String>();
+    if (query == null)
+      return result;
+    
+    for (String s:query.split("&"))
+    {
+      final int pos = s.indexOf('=');
+      if (pos <= 0)
+        continue;
+      result.put(URLDecoder.decode(s.substring(0,pos),"UTF-8"),URLDecoder.decode(s.substring(pos + 1),"UTF-8"));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,250 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hc.client5.http.utils.DateUtils;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+
+/**
+ * Begrenzt die Anzahl der Requests pro API-Key per Token-Bucket und berechnet die
+ * Wartezeiten fuer erneute Versuche nach einer Drosselung oder einem Server-Fehler.
+ */
+@Lifecycle(Type.CONTEXT)
+public class RequestScheduler
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  
+  private final Map<String,Bucket> buckets = new ConcurrentHashMap<String,Bucket>();
+  
+  private final AtomicInteger queued  = new AtomicInteger();
+  private final AtomicLong lastWait   = new AtomicLong();
+  private final AtomicLong totalWait  = new AtomicLong();
+  private final AtomicLong waitCount  = new AtomicLong();
+  
+  /**
+   * Wartet, bis fuer den API-Key ein weiterer Request gesendet werden darf.
+   * @param apiKey der API-Key.
+   * @throws OperationCanceledException wenn der Thread beim Warten unterbrochen wurde.
+   */
+  public void acquire(String apiKey) throws OperationCanceledException
+  {
+    final double rate = settings.getDouble("http.ratelimit.per.second",5d);
+    final int burst   = Math.max(1,settings.getInt("http.ratelimit.burst",10));
+    
+    final Bucket b = this.buckets.computeIfAbsent(apiKey,k -> new Bucket(burst));
+    final long wait = b.reserve(rate,burst);
+    if (wait <= 0)
+      return;
+    
+    this.queued.incrementAndGet();
+    try
+    {
+      Logger.debug("rate limit reached, waiting " + wait + " millis");
+      sleep(wait);
+    }
+    finally
+    {
+      this.queued.decrementAndGet();
+      this.lastWait.set(wait);
+      this.totalWait.addAndGet(wait);
+      this.waitCount.incrementAndGet();
+      Metrics.duration("http.ratelimit.wait",wait * 1000000L);
+    }
+  }
+  
+  /**
+   * Sperrt den API-Key fuer die angegebene Dauer, z.Bsp. nach einem "Retry-After" des Servers.
+   * @param apiKey der API-Key.
+   * @param millis die Dauer in Millisekunden.
+   */
+  public void pause(String apiKey, long millis)
+  {
+    if (millis <= 0)
+      return;
+    
+    Logger.info("server requested a pause of " + millis + " millis");
+    final int burst = Math.max(1,settings.getInt("http.ratelimit.burst",10));
+    this.buckets.computeIfAbsent(apiKey,k -> new Bucket(burst)).block(System.currentTimeMillis() + millis);
+  }
+  
+  /**
+   * Liefert die Wartezeit vor dem naechsten Versuch.
+   * Die Wartezeit waechst exponentiell und enthaelt einen zufaelligen Anteil, damit parallele
+   * Abrufe nicht gleichzeitig erneut anfragen.
+   * @param attempt die Nummer des Versuchs, beginnend bei 1.
+   * @return die Wartezeit in Millisekunden.
+   */
+  public long getBackoff(int attempt)
+  {
+    final long base = settings.getLong("http.retry.backoff.millis",500L);
+    final long max  = settings.getLong("http.retry.backoff.max.millis",30000L);
+    final long exp  = Math.min(max,base << Math.min(20,Math.max(0,attempt - 1)));
+    final long half = exp / 2;
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+  
+  /**
+   * Liefert die maximale Anzahl der erneuten Versuche.
+   * @return die maximale Anzahl der erneuten Versuche.
+   */
+  public int getMaxRetries()
+  {
+    return Math.max(0,settings.getInt("http.retry.max",3));
+  }
+  
+  /**
+   * Liefert die maximale Wartezeit, die wir nach einem "Retry-After" des Servers abwarten.
+   * Verlangt der Server eine laengere Pause, wird der Request nicht wiederholt.
+   * @return die maximale Wartezeit in Millisekunden.
+   */
+  public long getMaxRetryAfter()
+  {
+    return Math.max(0,settings.getLong("http.retry.after.max.seconds",120L)) * 1000L;
+  }
+  
+  /**
+   * Parst den Header "Retry-After".
+   * @param value der Wert des Headers. Entweder Sekunden oder ein HTTP-Datum.
+   * @return die Wartezeit in Millisekunden oder 0, wenn keine angegeben ist.
+   */
+  public static long parseRetryAfter(String value)
+  {
+    value = StringUtils.trimToNull(value);
+    if (value == null)
+      return 0L;
+    
+    try
+    {
+      if (StringUtils.isNumeric(value))
+        return Long.parseLong(value) * 1000L;
+      
+      final Instant date = DateUtils.parseStandardDate(value);
+      return date != null ? Math.max(0L,date.toEpochMilli() - System.currentTimeMillis()) : 0L;
+    }
+    catch (Exception e)
+    {
+      Logger.warn("unable to parse retry-after header: " + value);
+      return 0L;
+    }
+  }
+  
+  /**
+   * Wartet die angegebene Zeit.
+   * @param millis die Wartezeit in Millisekunden.
+   * @throws OperationCanceledException wenn der Thread beim Warten unterbrochen wurde.
+   */
+  public static void sleep(long millis) throws OperationCanceledException
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new OperationCanceledException();
+    }
+  }
+  
+  /**
+   * Liefert die Anzahl der Requests, die gerade auf ihre Freigabe warten.
+   * @return die Anzahl der wartenden Requests.
+   */
+  public int getQueueDepth()
+  {
+    return this.queued.get();
+  }
+  
+  /**
+   * Liefert die Wartezeit des zuletzt verzoegerten Requests.
+   * @return die Wartezeit in Millisekunden.
+   */
+  public long getLastWait()
+  {
+    return this.lastWait.get();
+  }
+  
+  /**
+   * Liefert die durchschnittliche Wartezeit der verzoegerten Requests.
+   * @return die durchschnittliche Wartezeit in Millisekunden.
+   */
+  public long getAverageWait()
+  {
+    final long count = this.waitCount.get();
+    return count > 0 ? this.totalWait.get() / count : 0L;
+  }
+  
+  /**
+   * Token-Bucket eines API-Keys.
+   */
+  private static class Bucket
+  {
+    private double tokens;
+    private long last = System.currentTimeMillis();
+    private long blockedUntil = 0L;
+    
+    /**
+     * ct.
+     * @param burst die Anzahl der initial verfuegbaren Tokens.
+     */
+    private Bucket(int burst)
+    {
+      this.tokens = burst;
+    }
+    
+    /**
+     * Reserviert einen Token.
+     * Ist keiner verfuegbar, wird er trotzdem reserviert und die Wartezeit bis zu seiner Verfuegbarkeit geliefert.
+     * @param rate die Anzahl der Tokens pro Sekunde. Bei 0 ist die Begrenzung deaktiviert.
+     * @param burst die maximale Anzahl der Tokens.
+     * @return die Wartezeit in Millisekunden.
+     */
+    private synchronized long reserve(double rate, int burst)
+    {
+      final long now = System.currentTimeMillis();
+      long wait = 0L;
+      if (rate > 0d)
+      {
+        this.tokens = Math.min(burst,this.tokens + (now - this.last) * rate / 1000d);
+        this.last = now;
+        this.tokens -= 1d;
+        if (this.tokens < 0d)
+          wait = (long) Math.ceil(-this.tokens * 1000d / rate);
+      }
+      return Math.max(wait,this.blockedUntil - now);
+    }
+    
+    /**
+     * Sperrt den Bucket bis zum angegebenen Zeitpunkt.
+     * @param until der Zeitpunkt.
+     */
+    private synchronized void block(long until)
+    {
+      this.blockedUntil = Math.max(this.blockedUntil,until);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+
+/**
+ * Cache fuer die Antworten der Requests.
+ * Die Eintraege verfallen nach einer konfigurierbaren Zeit. Ist der Cache voll, wird
+ * der am laengsten nicht verwendete Eintrag entfernt. Abgelaufene Eintraege mit ETag
+ * bleiben erhalten, damit sie per "If-None-Match" erneut bestaetigt werden koennen.
+ */
+class ResponseCache
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static int STRIPES = 64;
+  
+  private final Object[] locks = new Object[STRIPES];
+  private final Map<String,CacheEntry> cache = new LinkedHashMap<String,CacheEntry>(16,0.75f,true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+     */
+    @Override
+    protected boolean removeEldestEntry(Entry<String,CacheEntry> eldest)
+    {
+      return this.size() > Math.max(1,settings.getInt("http.cache.size",50));
+    }
+  };
+  
+  /**
+   * ct.
+   */
+  ResponseCache()
+  {
+    for (int i=0;i<this.locks.length;++i)
+    {
+      this.locks[i] = new Object();
+    }
+  }
+  
+  /**
+   * Erzeugt den Schluessel fuer den Cache.
+   * @param apiKey der API-Key.
+   * @param path der Pfad.
+   * @param params die Parameter. Koennen NULL sein.
+   * @return der Schluessel.
+   */
+  String createKey(String apiKey, String path, Map<String,String> params)
+  {
+    final StringBuilder sb = new StringBuilder(apiKey).append('|').append(path);
+    if (params != null)
+    {
+      // Sortiert, damit die Reihenfolge der Parameter keine Rolle spielt
+      for (Entry<String,String> e:new TreeMap<String,String>(params).entrySet())
+      {
+        sb.append('|').append(e.getKey()).append('=').append(e.getValue());
+      }
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Liefert das Objekt, ueber das die Abrufe fuer einen Schluessel synchronisiert werden.
+   * Damit wird dieselbe Ressource bei parallelen Abrufen nur einmal geladen.
+   * Die Lock-Objekte stammen aus einem Array fester Groesse, damit sie nicht pro Schluessel
+   * angelegt werden und ueber die Laufzeit von Jameica anwachsen. Verschiedene Schluessel
+   * koennen sich daher ein Lock-Objekt teilen.
+   * @param key der Schluessel.
+   * @return das Lock-Objekt.
+   */
+  Object lock(String key)
+  {
+    return this.locks[(key.hashCode() & Integer.MAX_VALUE) % this.locks.length];
+  }
+  
+  /**
+   * Liefert den Eintrag aus dem Cache.
+   * @param key der Schluessel.
+   * @return der Eintrag oder NULL. Der Eintrag kann abgelaufen sein.
+   */
+  synchronized CacheEntry get(String key)
+  {
+    final CacheEntry e = this.cache.get(key);
+    if (e != null && e.isExpired() && e.etag == null)
+    {
+      this.cache.remove(key);
+      return null;
+    }
+    return e;
+  }
+  
+  /**
+   * Speichert die Antwort im Cache.
+   * @param key der Schluessel.
+   * @param body die Antwort-Daten.
+   * @param etag der ETag der Antwort. Kann NULL sein.
+   */
+  synchronized void put(String key, String body, String etag)
+  {
+    final int ttl = settings.getInt("http.cache.ttl.seconds",300);
+    if (ttl <= 0)
+      return;
+    
+    final long now = System.currentTimeMillis();
+    this.cache.put(key,new CacheEntry(body,etag,now,now + ttl * 1000L));
+  }
+  
+  /**
+   * Ein Eintrag im Cache.
+   */
+  static class CacheEntry
+  {
+    final String body;
+    final String etag;
+    private final long created;
+    private final long expires;
+    
+    /**
+     * ct.
+     * @param body die Antwort-Daten.
+     * @param etag der ETag. Kann NULL sein.
+     * @param created Zeitpunkt, zu dem die Antwort empfangen oder bestaetigt wurde.
+     * @param expires Zeitpunkt, zu dem der Eintrag verfaellt.
+     */
+    private CacheEntry(String body, String etag, long created, long expires)
+    {
+      this.body    = body;
+      this.etag    = etag;
+      this.created = created;
+      this.expires = expires;
+    }
+    
+    /**
+     * Liefert das Alter des Eintrages.
+     * @return das Alter in Millisekunden.
+     */
+    long getAge()
+    {
+      return System.currentTimeMillis() - this.created;
+    }
+    
+    /**
+     * Prueft, ob der Eintrag abgelaufen ist.
+     * @return true, wenn er abgelaufen ist.
+     */
+    boolean isExpired()
+    {
+      return System.currentTimeMillis() > this.expires;
+    }
+  }
+}
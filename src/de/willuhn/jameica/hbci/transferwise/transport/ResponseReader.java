@@ -0,0 +1,30 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import org.apache.hc.core5.http.ClassicHttpResponse;
+
+/**
+ * Liest die Antwort-Daten eines erfolgreichen oder mit "304 Not Modified" beantworteten Requests.
+ * @param <T> der Typ der Antwort-Daten.
+ */
+interface ResponseReader<T>
+{
+  /**
+   * Liest die Antwort-Daten aus der Response.
+   * @param response die Response.
+   * @return die Antwort-Daten.
+   * @throws Exception
+   */
+  T read(ClassicHttpResponse response) throws Exception;
+}
+
+
@@ -0,0 +1,684 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.willuhn.annotation.Lifecycle;
+import de.willuhn.annotation.Lifecycle.Type;
+import de.willuhn.jameica.hbci.transferwise.Plugin;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.Settings;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
+
+/**
+ * Archiv der abgerufenen Kontoauszuege.
+ * Die Buchungen werden komprimiert pro Account, Waehrung und Monat gespeichert. Ueberschneiden sich
+ * mehrere Abrufe, ersetzen die neu empfangenen Buchungen die bereits archivierten, statt dass pro
+ * Abruf eine weitere Datei entsteht.
+ * Im Replay-Modus werden die Kontoauszuege statt per Netzwerk aus dem Archiv gelesen.
+ */
+@Lifecycle(Type.CONTEXT)
+public class StatementArchive
+{
+  private final static Settings settings = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getSettings();
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+
+  private final static Pattern PATTERN_ACCOUNT = Pattern.compile("/borderless-accounts/([^/]+)/");
+  private final static String SUFFIX = ".json.gz";
+  private final static String TEMP_PREFIX = "statement";
+  private final static String TEMP_SUFFIX = ".tmp";
+  private final static String FORMAT = "yyyyMM";
+
+  private final ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+  private final StatementReader reader = new StatementReader(this.mapper);
+  private volatile long lastCleanup = 0L;
+
+  /**
+   * Prueft, ob die Kontoauszuege archiviert werden sollen.
+   * @return true, wenn sie archiviert werden sollen.
+   */
+  public boolean isEnabled()
+  {
+    return settings.getBoolean("archive.enabled",false);
+  }
+
+  /**
+   * Prueft, ob die Kontoauszuege aus dem Archiv statt per Netzwerk gelesen werden sollen.
+   * @return true, wenn sie aus dem Archiv gelesen werden sollen.
+   */
+  public boolean isReplay()
+  {
+    return settings.getBoolean("archive.replay",false);
+  }
+
+  /**
+   * Liefert den Beginn des aeltesten archivierten Monats.
+   * @param account der Account.
+   * @param currency die Waehrung.
+   * @return der Beginn des aeltesten Monats oder NULL, wenn nichts archiviert ist.
+   */
+  public Date getStartDate(String account, String currency)
+  {
+    final List<Entry> entries = this.list(account,currency);
+    Date result = null;
+    for (Entry e:entries)
+    {
+      if (result == null || e.start.before(result))
+        result = e.start;
+    }
+    return result;
+  }
+
+  /**
+   * Beginnt die Aufzeichnung eines Kontoauszuges.
+   * @param path der Pfad des Kontoauszuges.
+   * @param params die Parameter inclusive Waehrung und Zeitraum.
+   * @return die Aufzeichnung oder NULL, wenn nicht archiviert wird.
+   */
+  Recording record(String path, Map<String,String> params)
+  {
+    if (!this.isEnabled())
+      return null;
+
+    final File dir = this.getDir(path,params);
+    if (dir == null)
+      return null;
+
+    try
+    {
+      return new Recording(dir);
+    }
+    catch (Exception e)
+    {
+      // Am Archiv soll die Synchronisierung nicht scheitern
+      Logger.error("unable to archive account statement, continue without archive",e);
+      return null;
+    }
+  }
+
+  /**
+   * Liest den Kontoauszug aus dem Archiv.
+   * Es werden alle archivierten Monate verwendet, die sich mit dem angefragten Zeitraum ueberschneiden.
+   * @param path der Pfad des Kontoauszuges.
+   * @param params die Parameter inclusive Waehrung und Zeitraum.
+   * @param reader der Reader fuer die Kontoauszuege.
+   * @param handler der Handler, der die Buchungen erhaelt.
+   * @return der Kontoauszug des spaetesten Monats ohne Buchungen oder NULL, wenn im Archiv nichts gefunden wurde.
+   * @throws ApplicationException
+   */
+  AccountStatement replay(String path, Map<String,String> params, StatementReader reader, TransactionHandler handler) throws ApplicationException
+  {
+    final String account = getAccount(path);
+    final String currency = params != null ? params.get("currency") : null;
+    final Date start = parse(params,"intervalStart",Plugin.DATEFORMAT);
+    final Date end   = parse(params,"intervalEnd",Plugin.DATEFORMAT);
+    if (account == null || currency == null || start == null || end == null)
+      throw new ApplicationException(i18n.tr("Der Kontoauszug kann nicht aus dem Archiv gelesen werden"));
+
+    final List<Entry> entries = new ArrayList<Entry>();
+    for (Entry e:this.list(account,currency))
+    {
+      if (!e.start.after(end) && !e.end.before(start))
+        entries.add(e);
+    }
+
+    Logger.info("replaying " + entries.size() + " archived months for account " + account + ", currency " + currency + ": " + start + " - " + end);
+    if (entries.size() == 0)
+      return null;
+
+    // Aufsteigend, damit der zuletzt gelesene Monat den aktuellsten Schluss-Saldo hat
+    sort(entries);
+
+    // Wurde das Datum einer Buchung nachtraeglich geaendert, kann sie in zwei Monaten stehen
+    final Set<String> seen = new HashSet<String>();
+    AccountStatement result = null;
+    for (Entry e:entries)
+    {
+      try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(e.file))))
+      {
+        result = reader.read(is,t -> {
+          if (t.date == null || t.date.before(start) || t.date.after(end))
+            return;
+          if (!seen.add(createKey(t)))
+            return;
+          handler.handle(t);
+        });
+      }
+      catch (ApplicationException ae)
+      {
+        throw ae;
+      }
+      catch (Exception ex)
+      {
+        Logger.error("unable to read archived account statement " + e.file,ex);
+        throw new ApplicationException(i18n.tr("Fehler beim Lesen des archivierten Kontoauszuges {0}",e.file.getName()),ex);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Entfernt die Monate, die aelter als erlaubt sind. Ist das Archiv anschliessend
+   * noch groesser als erlaubt, werden die aeltesten Monate entfernt.
+   * Ausserdem werden temporaere Dateien entfernt, die z.Bsp. nach einem Absturz waehrend
+   * der Aufzeichnung liegen geblieben sind.
+   * Die Funktion wird beim Start und anschliessend hoechstens einmal pro
+   * "archive.cleanup.interval.hours" nach einer Aufzeichnung ausgefuehrt.
+   */
+  public void cleanup()
+  {
+    final long now = System.currentTimeMillis();
+    this.lastCleanup = now;
+
+    // Laufende Aufzeichnungen sind deutlich juenger und bleiben daher unberuehrt
+    final List<File> temp = new ArrayList<File>();
+    collect(this.getDir(),TEMP_SUFFIX,temp);
+    final long maxTempAge = Math.max(1,settings.getInt("archive.tmp.maxage.hours",24)) * 60L * 60L * 1000L;
+    for (File f:temp)
+    {
+      if (!f.getName().startsWith(TEMP_PREFIX) || now - f.lastModified() <= maxTempAge)
+        continue;
+      
+      if (f.delete())
+        Logger.info("removed stale temp file " + f);
+      else
+        Logger.warn("unable to delete stale temp file " + f);
+    }
+
+    final List<File> files = new ArrayList<File>();
+    collect(this.getDir(),SUFFIX,files);
+
+    final long maxAge  = settings.getInt("archive.maxage.days",400) * 24L * 60L * 60L * 1000L;
+    final long maxSize = settings.getInt("archive.maxsize.mb",100) * 1024L * 1024L;
+
+    final List<Entry> entries = new ArrayList<Entry>();
+    long size = 0L;
+    for (File f:files)
+    {
+      final Entry e = Entry.create(f);
+      if (e == null)
+        continue;
+      entries.add(e);
+      size += f.length();
+    }
+    sort(entries);
+
+    for (Entry e:entries)
+    {
+      final boolean expired = maxAge > 0 && now - e.end.getTime() > maxAge;
+      final boolean full    = maxSize > 0 && size > maxSize;
+      if (!expired && !full)
+        break;
+
+      final long length = e.file.length();
+      if (e.file.delete())
+      {
+        Logger.info("removed archived account statement " + e.file + (expired ? " (expired)" : " (archive size exceeded)"));
+        size -= length;
+      }
+      else
+      {
+        Logger.warn("unable to delete archived account statement " + e.file);
+      }
+    }
+  }
+
+  /**
+   * Fuehrt {@link #cleanup()} aus, wenn das Intervall seit dem letzten Mal abgelaufen ist.
+   */
+  private void cleanupIfDue()
+  {
+    final long interval = Math.max(1,settings.getInt("archive.cleanup.interval.hours",24)) * 60L * 60L * 1000L;
+    if (System.currentTimeMillis() - this.lastCleanup > interval)
+      this.cleanup();
+  }
+
+  /**
+   * Uebernimmt die Buchungen eines vollstaendig gelesenen Kontoauszuges in die Monate des Archivs.
+   * Die Buchungen eines Abrufes werden hierfuer nach Monaten gruppiert im Speicher gehalten.
+   * Bereits archivierte Buchungen mit demselben Schluessel werden ersetzt.
+   * @param dir das Verzeichnis des Accounts und der Waehrung.
+   * @param file die Datei mit dem empfangenen Kontoauszug.
+   * @throws Exception
+   */
+  private synchronized void store(File dir, File file) throws Exception
+  {
+    final DateFormat df = new SimpleDateFormat(FORMAT);
+    final Map<String,List<Transaction>> months = new TreeMap<String,List<Transaction>>();
+    final AccountStatement head;
+    try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))
+    {
+      head = this.reader.read(is,t -> {
+        if (t.date != null)
+          months.computeIfAbsent(df.format(t.date),m -> new ArrayList<Transaction>()).add(t);
+      });
+    }
+
+    for (Map.Entry<String,List<Transaction>> e:months.entrySet())
+    {
+      this.merge(new File(dir,e.getKey() + SUFFIX),head,e.getValue());
+    }
+    Logger.info("archived account statement in " + months.size() + " months of " + dir);
+    this.cleanupIfDue();
+  }
+
+  /**
+   * Fuegt die Buchungen in die Datei eines Monats ein.
+   * @param file die Datei des Monats.
+   * @param head der Kontoauszug ohne Buchungen.
+   * @param list die Buchungen des Monats.
+   * @throws IOException
+   */
+  private void merge(File file, AccountStatement head, List<Transaction> list) throws IOException
+  {
+    final Map<String,Transaction> merged = new LinkedHashMap<String,Transaction>();
+    if (file.isFile())
+    {
+      try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))
+      {
+        for (Transaction t:this.mapper.readValue(is,AccountStatement.class).transactions)
+        {
+          merged.put(createKey(t),t);
+        }
+      }
+    }
+    final int existing = merged.size();
+    for (Transaction t:list)
+    {
+      merged.put(createKey(t),t);
+    }
+
+    final AccountStatement as = new AccountStatement();
+    as.accountHolder = head.accountHolder;
+    as.issuer = head.issuer;
+    as.endOfStatementBalance = head.endOfStatementBalance;
+    as.query = head.query;
+    as.transactions = new ArrayList<Transaction>(merged.values());
+    Collections.sort(as.transactions,new Comparator<Transaction>() {
+      @Override
+      public int compare(Transaction t1, Transaction t2)
+      {
+        return t1.date.compareTo(t2.date);
+      }
+    });
+
+    final File temp = File.createTempFile(TEMP_PREFIX,TEMP_SUFFIX,file.getParentFile());
+    try
+    {
+      try (OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+      {
+        this.mapper.writeValue(os,as);
+      }
+      Files.move(temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally
+    {
+      if (temp.exists() && !temp.delete())
+        Logger.warn("unable to delete temporary archive file " + temp);
+    }
+    Logger.debug("archived " + as.transactions.size() + " transactions in " + file + " (" + (as.transactions.size() - existing) + " new)");
+  }
+
+  /**
+   * Liefert die archivierten Monate des Accounts in der Waehrung.
+   * @param account der Account.
+   * @param currency die Waehrung.
+   * @return die archivierten Monate.
+   */
+  private List<Entry> list(String account, String currency)
+  {
+    final List<Entry> result = new ArrayList<Entry>();
+    if (account == null || currency == null)
+      return result;
+
+    final File[] files = new File(new File(this.getDir(),clean(account)),clean(currency)).listFiles();
+    if (files == null)
+      return result;
+
+    for (File f:files)
+    {
+      final Entry e = Entry.create(f);
+      if (e != null)
+        result.add(e);
+    }
+    return result;
+  }
+
+  /**
+   * Liefert das Verzeichnis fuer die Kontoauszuege des Accounts in der Waehrung.
+   * @param path der Pfad des Kontoauszuges.
+   * @param params die Parameter inclusive Waehrung.
+   * @return das Verzeichnis oder NULL, wenn der Kontoauszug nicht zugeordnet werden kann.
+   */
+  private File getDir(String path, Map<String,String> params)
+  {
+    final String account  = getAccount(path);
+    final String currency = params != null ? params.get("currency") : null;
+    if (account == null || currency == null)
+    {
+      Logger.warn("unable to determine account and currency of statement " + path + ", not archived");
+      return null;
+    }
+
+    return new File(new File(this.getDir(),clean(account)),clean(currency));
+  }
+
+  /**
+   * Liefert das Verzeichnis des Archivs.
+   * @return das Verzeichnis des Archivs.
+   */
+  private File getDir()
+  {
+    final String dir = StringUtils.trimToNull(settings.getString("archive.dir",null));
+    if (dir != null)
+      return new File(dir);
+    return new File(Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath(),"archive");
+  }
+
+  /**
+   * Ermittelt den Account aus dem Pfad des Kontoauszuges.
+   * @param path der Pfad.
+   * @return der Account oder NULL.
+   */
+  private static String getAccount(String path)
+  {
+    if (path == null)
+      return null;
+    final Matcher m = PATTERN_ACCOUNT.matcher(path);
+    return m.find() ? m.group(1) : null;
+  }
+
+  /**
+   * Parst das Datum aus den Parametern.
+   * @param params die Parameter.
+   * @param name der Name des Parameters.
+   * @param format das Datumsformat.
+   * @return das Datum oder NULL.
+   */
+  private static Date parse(Map<String,String> params, String name, String format)
+  {
+    final String s = params != null ? StringUtils.trimToNull(params.get(name)) : null;
+    if (s == null)
+      return null;
+
+    try
+    {
+      return new SimpleDateFormat(format).parse(s);
+    }
+    catch (ParseException pe)
+    {
+      Logger.warn("invalid date in parameter " + name + ": " + s);
+      return null;
+    }
+  }
+
+  /**
+   * Erzeugt den Schluessel, ueber den doppelte Buchungen erkannt werden.
+   * @param t die Buchung.
+   * @return der Schluessel.
+   */
+  private static String createKey(Transaction t)
+  {
+    if (t.referenceNumber != null)
+      return t.referenceNumber;
+    return t.date.getTime() + "|" + (t.amount != null ? t.amount.value : null) + "|" + (t.details != null ? t.details.description : null);
+  }
+
+  /**
+   * Entfernt die Zeichen, die nicht in Dateinamen vorkommen sollten.
+   * @param s der String.
+   * @return der bereinigte String.
+   */
+  private static String clean(String s)
+  {
+    return s.replaceAll("[^a-zA-Z0-9\\-]","_");
+  }
+
+  /**
+   * Sammelt rekursiv alle Dateien des Archivs mit der angegebenen Endung.
+   * @param dir das Verzeichnis.
+   * @param suffix die Endung der Dateien.
+   * @param files die Liste der Dateien.
+   */
+  private static void collect(File dir, String suffix, List<File> files)
+  {
+    final File[] children = dir.listFiles();
+    if (children == null)
+      return;
+
+    for (File f:children)
+    {
+      if (f.isDirectory())
+        collect(f,suffix,files);
+      else if (f.getName().endsWith(suffix))
+        files.add(f);
+    }
+  }
+
+  /**
+   * Sortiert die archivierten Monate aufsteigend.
+   * @param entries die archivierten Monate.
+   */
+  private static void sort(List<Entry> entries)
+  {
+    Collections.sort(entries,new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2)
+      {
+        return e1.start.compareTo(e2.start);
+      }
+    });
+  }
+
+  /**
+   * Ein archivierter Monat.
+   */
+  private static class Entry
+  {
+    private final File file;
+    private final Date start;
+    private final Date end;
+
+    /**
+     * ct.
+     * @param file die Datei.
+     * @param start Beginn des Monats.
+     * @param end Ende des Monats.
+     */
+    private Entry(File file, Date start, Date end)
+    {
+      this.file  = file;
+      this.start = start;
+      this.end   = end;
+    }
+
+    /**
+     * Erzeugt den Eintrag anhand des Dateinamens.
+     * @param f die Datei.
+     * @return der Eintrag oder NULL, wenn die Datei kein archivierter Monat ist.
+     */
+    private static Entry create(File f)
+    {
+      final String name = f.getName();
+      if (!name.endsWith(SUFFIX))
+        return null;
+
+      try
+      {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTime(new SimpleDateFormat(FORMAT).parse(name.substring(0,name.length() - SUFFIX.length())));
+        final Date start = cal.getTime();
+        cal.add(Calendar.MONTH,1);
+        cal.add(Calendar.MILLISECOND,-1);
+        return new Entry(f,start,cal.getTime());
+      }
+      catch (ParseException pe)
+      {
+        Logger.warn("skipping archived account statement with invalid name " + f);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Die Aufzeichnung eines Kontoauszuges. Die gelesenen Daten werden zunaechst in eine temporaere
+   * Datei geschrieben. Erst wenn der Kontoauszug vollstaendig gelesen wurde, werden die Buchungen
+   * in die Monate des Archivs uebernommen.
+   */
+  class Recording implements AutoCloseable
+  {
+    private final File dir;
+    private final File temp;
+    private final OutputStream os;
+    private boolean closed = false;
+    private boolean failed = false;
+
+    /**
+     * ct.
+     * @param dir das Verzeichnis des Accounts und der Waehrung.
+     * @throws IOException
+     */
+    private Recording(File dir) throws IOException
+    {
+      this.dir = dir;
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("unable to create archive dir " + dir);
+
+      this.temp = File.createTempFile(TEMP_PREFIX,TEMP_SUFFIX,dir);
+      this.os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(this.temp)));
+    }
+
+    /**
+     * Liefert einen Stream, der alle gelesenen Daten zusaetzlich in das Archiv schreibt.
+     * @param is der originale Stream.
+     * @return der Stream.
+     */
+    InputStream wrap(InputStream is)
+    {
+      return new FilterInputStream(is) {
+        @Override
+        public int read() throws IOException
+        {
+          final int b = super.read();
+          if (b != -1)
+            write(new byte[]{(byte) b},0,1);
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+          final int n = super.read(b,off,len);
+          if (n > 0)
+            write(b,off,n);
+          return n;
+        }
+      };
+    }
+    
+    /**
+     * Schreibt die Daten in das Archiv. Ein Fehler beim Schreiben fuehrt nur dazu,
+     * dass der Kontoauszug nicht archiviert wird. Das Lesen laeuft weiter.
+     * @param b die Daten.
+     * @param off Offset.
+     * @param len Laenge.
+     */
+    private void write(byte[] b, int off, int len)
+    {
+      if (this.failed)
+        return;
+      
+      try
+      {
+        this.os.write(b,off,len);
+      }
+      catch (IOException e)
+      {
+        Logger.error("unable to write archive file " + this.temp + ", statement will not be archived",e);
+        this.failed = true;
+      }
+    }
+
+    /**
+     * Uebernimmt den vollstaendig gelesenen Kontoauszug in das Archiv.
+     * @throws Exception
+     */
+    void commit() throws Exception
+    {
+      if (this.failed)
+        return;
+      
+      this.os.close();
+      this.closed = true;
+      store(this.dir,this.temp);
+    }
+
+    /**
+     * Entfernt die temporaere Datei.
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close()
+    {
+      if (!this.closed)
+      {
+        try
+        {
+          this.os.close();
+        }
+        catch (IOException e)
+        {
+          Logger.error("unable to close archive file " + this.temp,e);
+        }
+      }
+      if (!this.temp.delete())
+        Logger.warn("unable to delete temporary archive file " + this.temp);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
+import de.willuhn.logging.Logger;
+
+/**
+ * Liest einen Kontoauszug als Stream, ohne alle Buchungen gleichzeitig im Speicher zu halten.
+ */
+public class StatementReader
+{
+  private final ObjectMapper mapper;
+  private final ObjectReader transactionReader;
+
+  /**
+   * ct.
+   * @param mapper der zu verwendende Object-Mapper.
+   */
+  public StatementReader(ObjectMapper mapper)
+  {
+    this.mapper = mapper;
+    this.transactionReader = mapper.readerFor(Transaction.class);
+  }
+
+  /**
+   * Liest den Kontoauszug aus dem Stream. Die Buchungen werden einzeln gelesen und an den Handler uebergeben.
+   * @param is der Stream.
+   * @param handler der Handler fuer die Buchungen.
+   * @return der Kontoauszug ohne Buchungen.
+   * @throws Exception
+   */
+  public AccountStatement read(InputStream is, TransactionHandler handler) throws Exception
+  {
+    final ObjectNode head = this.mapper.createObjectNode();
+    final long started = System.nanoTime();
+    long handling = 0L;
+    int count = 0;
+    
+    try (JsonParser parser = this.mapper.getFactory().createParser(is))
+    {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("unexpected start of account statement: " + parser.getCurrentToken());
+      
+      while (parser.nextToken() == JsonToken.FIELD_NAME)
+      {
+        final String name = parser.getCurrentName();
+        final JsonToken token = parser.nextToken();
+        
+        if ("transactions".equals(name) && token == JsonToken.START_ARRAY)
+        {
+          while (parser.nextToken() == JsonToken.START_OBJECT)
+          {
+            final Transaction t = this.transactionReader.readValue(parser);
+            final long t0 = System.nanoTime();
+            handler.handle(t);
+            handling += System.nanoTime() - t0;
+            count++;
+          }
+          continue;
+        }
+        
+        // Alle anderen Felder sind klein. Die sammeln wir und mappen sie am Ende.
+        head.set(name,this.mapper.readTree(parser));
+      }
+    }
+    
+    Logger.info("received " + count + " transactions");
+    final AccountStatement as = this.mapper.treeToValue(head,AccountStatement.class);
+    
+    // Das Lesen aus dem Stream ist enthalten, die Verarbeitung im Handler nicht
+    Metrics.duration("json.parse",System.nanoTime() - started - handling);
+    return as;
+  }
+}
@@ -0,0 +1,28 @@
+/**********************************************************************
+ *
+ * Copyright (c) 2020 Olaf Willuhn
+ * All rights reserved.
+ * 
+ * This software is copyrighted work licensed under the terms of the
+ * Jameica License.  Please consult the file "LICENSE" for details. 
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.hbci.transferwise.transport;
+
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
+
+/**
+ * Callback, ueber das die Buchungen eines Kontoauszuges einzeln bereits waehrend des Empfangs verarbeitet werden.
+ */
+public interface TransactionHandler
+{
+  /**
+   * Wird fuer jede empfangene Buchung aufgerufen.
+   * @param t die Buchung.
+   * @throws Exception
+   */
+  void handle(Transaction t) throws Exception;
+}
+
+
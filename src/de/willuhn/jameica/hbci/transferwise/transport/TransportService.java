@@ -14,38 +14,55 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.security.KeyPair;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpHead;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
 import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.io.SocketConfig;
 import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.willuhn.annotation.Lifecycle;
 import de.willuhn.annotation.Lifecycle.Type;
 import de.willuhn.io.IOUtil;
+import de.willuhn.jameica.hbci.HBCIProperties;
 import de.willuhn.jameica.hbci.rmi.Konto;
 import de.willuhn.jameica.hbci.transferwise.KeyStorage;
 import de.willuhn.jameica.hbci.transferwise.Plugin;
 import de.willuhn.jameica.hbci.transferwise.domain.ApiError;
 import de.willuhn.jameica.hbci.transferwise.domain.accounts.Account;
 import de.willuhn.jameica.hbci.transferwise.domain.accounts.Balance;
-import de.willuhn.jameica.hbci.transferwise.domain.accounts.BankDetails;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.AccountStatement;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Amount;
+import de.willuhn.jameica.hbci.transferwise.domain.accountstatements.Transaction;
 import de.willuhn.jameica.hbci.transferwise.domain.profiles.UserProfile;
 import de.willuhn.jameica.hbci.transferwise.gui.dialogs.ProfileSelectDialog;
+import de.willuhn.jameica.hbci.transferwise.metrics.Metrics;
 import de.willuhn.jameica.system.Application;
 import de.willuhn.jameica.system.OperationCanceledException;
 import de.willuhn.jameica.system.Settings;
@@ -66,10 +83,24 @@ public class TransportService
   private final static String HEADER_2FA_TOKEN     = "X-2FA-Approval";
   private final static String HEADER_2FA_SIGNATURE = "X-Signature";
   
+  @Resource
+  private MockApiServer mockServer = null;
+  
+  @Resource
+  private RequestScheduler scheduler = null;
+  
+  @Resource
+  private StatementArchive archive = null;
+  
+  private PoolingHttpClientConnectionManager connectionManager = null;
   private CloseableHttpClient client = null;
   private final ObjectMapper mapper = new ObjectMapper();
+  private final StatementReader statementReader = new StatementReader(mapper);
+  private final ResponseCache responseCache = new ResponseCache();
   
-  private AtomicInteger errorCount = new AtomicInteger();
+  // Die zuletzt akzeptierten SCA-Tokens samt Signatur. Key ist Konto-ID und API-Key.
+  // Sie werden nur fuer die Abrufe der Kontoauszuege wiederverwendet, nur diese erfordern SCA.
+  private final Map<String,ScaApproval> scaCache = new ConcurrentHashMap<String,ScaApproval>();
 
   
   /**
@@ -79,7 +110,100 @@ public class TransportService
   private void init()
   {
     Logger.info("init transferwise transport service");
-    this.client = HttpClients.createDefault();
+    
+    final int maxTotal      = settings.getInt("http.pool.maxtotal",20);
+    final int maxPerRoute   = settings.getInt("http.pool.maxperroute",4);
+    final int connect       = settings.getInt("http.timeout.connect.seconds",10);
+    final int socket        = settings.getInt("http.timeout.socket.seconds",60);
+    final int request       = settings.getInt("http.timeout.request.seconds",30);
+    final int idle          = settings.getInt("http.idle.evict.seconds",30);
+    final int keepAlive     = settings.getInt("http.keepalive.seconds",60);
+    
+    Logger.info("http pool: max total " + maxTotal + ", max per route " + maxPerRoute + ", timeouts (seconds): connect " + connect + ", socket " + socket + ", request " + request + ", idle eviction " + idle + ", keep-alive " + keepAlive);
+    
+    // LIFO, damit bevorzugt die zuletzt verwendete Verbindung wiederverwendet wird und deren TLS-Session warm bleibt
+    this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+        .setMaxConnTotal(maxTotal)
+        .setMaxConnPerRoute(maxPerRoute)
+        .setConnPoolPolicy(PoolReusePolicy.LIFO)
+        .setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(Timeout.ofSeconds(socket)).build())
+        .setDefaultConnectionConfig(ConnectionConfig.custom()
+            .setConnectTimeout(Timeout.ofSeconds(connect))
+            .setSocketTimeout(Timeout.ofSeconds(socket))
+            .setValidateAfterInactivity(TimeValue.ofSeconds(idle))
+            .build())
+        .build();
+    
+    // Die Keep-Alive-Dauer gilt nur, wenn der Server selbst keine vorgibt.
+    final RequestConfig config = RequestConfig.custom()
+        .setConnectionRequestTimeout(Timeout.ofSeconds(request))
+        .setResponseTimeout(Timeout.ofSeconds(socket))
+        .setConnectionKeepAlive(TimeValue.ofSeconds(keepAlive))
+        .build();
+    
+    this.client = HttpClients.custom()
+        .setConnectionManager(this.connectionManager)
+        .setDefaultRequestConfig(config)
+        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+        .evictExpiredConnections()
+        .evictIdleConnections(TimeValue.ofSeconds(idle))
+        .build();
+    
+    if (this.getApiEndpoint() == ApiEndpoint.LOCAL && settings.getBoolean("endpoint.local.mock",false))
+    {
+      try
+      {
+        this.mockServer.start(settings.getString("endpoint.local.host","localhost"),settings.getInt("endpoint.local.port",8089));
+      }
+      catch (Exception e)
+      {
+        Logger.error("unable to start mock api server",e);
+      }
+    }
+  }
+  
+  /**
+   * Erzeugt vorab die Jackson-Reader der Antwort-Typen, damit die Deserializer
+   * nicht erst beim ersten Abruf aufgebaut werden.
+   */
+  public void preloadReaders()
+  {
+    final Class<?>[] types = new Class<?>[]{AccountStatement.class,Transaction.class,UserProfile[].class,Account[].class,ApiError.class};
+    for (Class<?> type:types)
+    {
+      this.mapper.readerFor(type);
+    }
+  }
+  
+  /**
+   * Oeffnet vorab eine Verbindung zum API-Endpunkt, die anschliessend im Connection-Pool verbleibt.
+   * Damit sind DNS-Aufloesung und TLS-Handshake beim ersten Abruf bereits erledigt.
+   * Der Request erfolgt ohne Authentifizierung, der Status-Code der Antwort spielt keine Rolle.
+   * @throws Exception
+   */
+  public void preconnect() throws Exception
+  {
+    final CloseableHttpClient client = this.client;
+    if (client == null)
+      return;
+    
+    final URI uri = this.createUriBuilder().setPath("/").build();
+    Logger.info("opening connection to " + uri);
+    final int code = client.execute(new HttpHead(uri),response -> response.getCode());
+    Logger.info("connection to " + uri + " established, status code " + code);
+  }
+  
+  /**
+   * Loggt die aktuelle Auslastung des Connection-Pools.
+   */
+  public void logPoolStats()
+  {
+    final PoolingHttpClientConnectionManager cm = this.connectionManager;
+    if (cm == null)
+      return;
+    
+    final PoolStats stats = cm.getTotalStats();
+    Logger.info("http pool stats: leased " + stats.getLeased() + ", pending " + stats.getPending() + ", available " + stats.getAvailable() + ", max " + stats.getMax());
   }
   
   /**
@@ -95,27 +219,26 @@ public class TransportService
     }
     finally
     {
+      this.mockServer.stop();
       this.client = null;
+      this.connectionManager = null;
     }
   }
   
   /**
-   * Liefert das zu verwendende Profil.
-   * @param konto
-   * @return das zu verwendende Profil.
+   * Ruft die Profile ab und ermittelt das zu verwendende.
+   * Existieren mehrere Profile, wird der User gefragt. Das Profil wird hierbei nicht am
+   * Konto gespeichert, das uebernimmt der Aufrufer.
+   * @param credentials die Zugangsdaten des Kontos.
+   * @return das zu verwendende Profil oder NULL, wenn es nicht ermittelt werden konnte.
    * @throws ApplicationException
    */
-  public String getProfile(Konto konto) throws ApplicationException
+  public String getProfile(Credentials credentials) throws ApplicationException
   {
     try
     {
-      // Checken, ob der User fuer das Konto schon ein Profil ausgewaehlt hat.
-      String profile = konto.getMeta(Plugin.META_PARAM_PROFILE,null);
-      if (StringUtils.trimToNull(profile) != null)
-        return profile;
-      
       Logger.info("fetching profiles");
-      UserProfile[] result = this.get(konto,"/v1/profiles",null,null,UserProfile[].class);
+      UserProfile[] result = this.get(credentials,"/v1/profiles",null,null,UserProfile[].class);
 
       if (result == null || result.length == 0)
       {
@@ -123,52 +246,40 @@ public class TransportService
         return null;
       }
       
-      try
+      if (result.length == 1 && result[0].id != null)
       {
-        if (result.length == 1 && result[0].id != null)
-        {
-          profile = result[0].id.toString();
-          Logger.info("auto-choosing profile id " + profile);
-          return profile;
-        }
-        
-        if (Application.inServerMode())
-        {
-          for (UserProfile p:result)
-          {
-            if (p.id != null)
-            {
-              profile = p.id.toString();
-              Logger.info("running in server-mode, unable to ask for user profile to be used, selecting first profile " + profile);
-              return profile;
-            }
-          }
-        }
-        else
+        final String profile = result[0].id.toString();
+        Logger.info("auto-choosing profile id " + profile);
+        return profile;
+      }
+      
+      if (Application.inServerMode())
+      {
+        for (UserProfile p:result)
         {
-          // User fragen
-          Logger.info("asking user for profile to be used");
-          ProfileSelectDialog d = new ProfileSelectDialog(Arrays.asList(result),ProfileSelectDialog.POSITION_CENTER);
-          UserProfile p = d.open();
-          if (p != null && p.id != null)
+          if (p.id != null)
           {
-            profile = p.id.toString();
-            Logger.info("chosen profile id " + profile);
+            final String profile = p.id.toString();
+            Logger.info("running in server-mode, unable to ask for user profile to be used, selecting first profile " + profile);
             return profile;
           }
         }
-        Logger.warn("unable to determine user profile");
-        return null;
       }
-      finally
+      else
       {
-        if (profile != null)
+        // User fragen
+        Logger.info("asking user for profile to be used");
+        ProfileSelectDialog d = new ProfileSelectDialog(Arrays.asList(result),ProfileSelectDialog.POSITION_CENTER);
+        UserProfile p = d.open();
+        if (p != null && p.id != null)
         {
-          Logger.info("saving profile id " + profile + " for account id " + konto.getID());
-          konto.setMeta(Plugin.META_PARAM_PROFILE,profile);
+          final String profile = p.id.toString();
+          Logger.info("chosen profile id " + profile);
+          return profile;
         }
       }
-
+      Logger.warn("unable to determine user profile");
+      return null;
     }
     catch (ApplicationException ae)
     {
@@ -186,77 +297,71 @@ public class TransportService
   }
   
   /**
-   * Liefert den zu verwendenden Account.
-   * @param konto
-   * @return der zu verwendende Account.
+   * Ruft die Accounts des Profils ab.
+   * @param credentials die Zugangsdaten des Kontos.
+   * @param profile das Profil.
+   * @return die Accounts oder NULL, wenn keine existieren.
    * @throws ApplicationException
    */
-  public String getAccount(Konto konto) throws ApplicationException
+  public Account[] getAccounts(Credentials credentials, String profile) throws ApplicationException
   {
-    try
+    Logger.info("fetching accounts");
+    Map<String,String> params = new HashMap<String,String>();
+    params.put("profileId",profile);
+    Account[] result = this.get(credentials,"/v1/borderless-accounts",params,null,Account[].class);
+
+    if (result == null || result.length == 0)
     {
-      // Checken, ob der User fuer das Konto schon ein Account ausgewaehlt hat.
-      String account = konto.getMeta(Plugin.META_PARAM_ACCOUNT,null);
-      if (StringUtils.trimToNull(account) != null)
-        return account;
-      
-      Logger.info("fetching accounts");
-      Map<String,String> params = new HashMap<String,String>();
-      params.put("profileId",this.getProfile(konto));
-      Account[] result = this.get(konto,"/v1/borderless-accounts",params,null,Account[].class);
+      Logger.warn("no accounts found, not sure if this will work");
+      return null;
+    }
+    return result;
+  }
 
-      if (result == null || result.length == 0)
-      {
-        Logger.warn("no accounts found, not sure if this will work");
+  /**
+   * Liefert den aktuellen Saldo des Accounts ueber die Liste der Accounts des Profils.
+   * Die Liste enthaelt die Salden aller Accounts und Waehrungen. Sie wird daher fuer alle
+   * Konten des Profils nur einmal abgerufen und ist bis zu "sync.saldo.maxage.seconds" alt.
+   * Danach wird sie per ETag erneut bestaetigt.
+   * @param credentials die Zugangsdaten des Kontos.
+   * @param profile das Profil.
+   * @param account der Account.
+   * @param currency die Waehrung. Ohne Angabe wird EUR verwendet.
+   * @return der Saldo oder NULL, wenn er nicht ermittelt werden konnte.
+   * @throws ApplicationException
+   */
+  public Amount getBalance(Credentials credentials, String profile, String account, String currency) throws ApplicationException
+  {
+    try
+    {
+      if (profile == null || account == null)
         return null;
-      }
       
-      final String iban = StringUtils.trimToEmpty(konto.getIban()).replace(" ","");
+      String curr = StringUtils.trimToNull(currency);
+      if (curr == null)
+        curr = HBCIProperties.CURRENCY_DEFAULT_DE;
       
-      try
-      {
-        // Wir iterieren ueber die Konten und nehmen das erste, bei dem die IBAN passt
-        for (Account a:result)
-        {
-          if (a == null || a.id == null)
-            continue;
-          
-          List<Balance> balances = a.balances;
-          if (balances == null || balances.size() == 0)
-            continue;
-          
-          for (Balance b:balances)
-          {
-            BankDetails detail = b.bankDetails;
-            if (detail == null)
-              continue;
-
-            String test = StringUtils.trimToNull(detail.iban);
-            if (test == null)
-              test = StringUtils.trimToNull(detail.accountNumber); // Fallback
-            
-            if (test == null)
-              continue;
-            
-            test = test.replace(" ","");
-            if (test.equalsIgnoreCase(iban))
-            {
-              account = a.id.toString();
-              return account;
-            }
-          }
-        }
-        Logger.warn("unable to determine account");
+      Logger.info("fetching balances");
+      Map<String,String> params = new HashMap<String,String>();
+      params.put("profileId",profile);
+      final long maxAge = settings.getInt("sync.saldo.maxage.seconds",60) * 1000L;
+      final Account[] result = this.parse(this.getJson(credentials,"/v1/borderless-accounts",params,null,maxAge),Account[].class);
+      if (result == null)
         return null;
-      }
-      finally
+      
+      for (Account a:result)
       {
-        if (account != null)
+        if (a.id == null || !account.equals(a.id.toString()) || a.balances == null)
+          continue;
+        
+        for (Balance b:a.balances)
         {
-          Logger.info("saving account id " + account + " for konto id " + konto.getID());
-          konto.setMeta(Plugin.META_PARAM_ACCOUNT,account);
+          if (b.amount != null && b.amount.value != null && curr.equalsIgnoreCase(b.currency))
+            return b.amount;
         }
       }
+      Logger.warn("no balance found for account " + account + " in currency " + curr);
+      return null;
     }
     catch (ApplicationException ae)
     {
@@ -269,14 +374,14 @@ public class TransportService
     catch (Exception e)
     {
       Logger.error("error",e);
-      throw new ApplicationException(i18n.tr("Fehler beim Abrufen der Benutzer-Profile"),e);
+      throw new ApplicationException(i18n.tr("Fehler beim Abrufen des Saldos"),e);
     }
   }
 
   /**
    * Fuehrt einen GET-Request aus.
    * @param <T> der Response-Typ.
-   * @param konto das Konto.
+   * @param credentials die Zugangsdaten des Kontos.
    * @param path der Pfad.
    * @param params die Parameter.
    * @param token optionale Angabe eines 2FA-Tokens.
@@ -284,21 +389,146 @@ public class TransportService
    * @return die deserialisierten Antwort-Daten.
    * @throws ApplicationException 
    */
-  public <T> T get(Konto konto, String path, Map<String,String> params, String token, Class<T> type) throws ApplicationException
+  public <T> T get(Credentials credentials, String path, Map<String,String> params, String token, Class<T> type) throws ApplicationException
   {
+    return this.parse(this.getJson(credentials,path,params,token,-1L),type);
+  }
+  
+  /**
+   * Deserialisiert die Antwort-Daten.
+   * @param <T> der Response-Typ.
+   * @param json die Antwort-Daten.
+   * @param type der Response-Typ.
+   * @return die deserialisierten Antwort-Daten.
+   * @throws ApplicationException
+   */
+  private <T> T parse(String json, Class<T> type) throws ApplicationException
+  {
+    final long started = System.nanoTime();
     try
     {
-      final String apiKey = konto.getMeta(Plugin.META_PARAM_APIKEY,null);
-      if (StringUtils.trimToNull(apiKey) == null)
-        throw new ApplicationException(i18n.tr("Bitte geben Sie einen API-Key in den Synchronisationsoptionen ein."));
+      return this.mapper.readValue(json,type);
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to parse response",e);
+      throw new ApplicationException(i18n.tr("Fehler beim Lesen der Antwort: {0}",e.getMessage()));
+    }
+    finally
+    {
+      Metrics.time("json.parse",started);
+    }
+  }
+  
+  /**
+   * Liefert die Antwort-Daten eines GET-Requests.
+   * Die Antworten werden pro API-Key, Pfad und Parameter gecached. Abgelaufene Eintraege
+   * werden per "If-None-Match" erneut bestaetigt, sofern der Server einen ETag geliefert hat.
+   * Requests mit 2FA-Token werden nicht gecached.
+   * @param credentials die Zugangsdaten des Kontos.
+   * @param path der Pfad.
+   * @param params die Parameter.
+   * @param token optionale Angabe eines 2FA-Tokens.
+   * @param maxAge maximales Alter der gecachten Antwort in Millisekunden. Ist sie aelter, wird sie
+   * auch vor Ablauf erneut bestaetigt. Bei einem negativen Wert gilt nur die Laufzeit des Caches.
+   * @return die Antwort-Daten.
+   * @throws ApplicationException
+   */
+  private String getJson(Credentials credentials, String path, Map<String,String> params, String token, long maxAge) throws ApplicationException
+  {
+    if (token != null)
+      return this.execute(credentials,path,params,token,null,false,r -> this.read(r.getEntity().getContent()));
+    
+    final String key = this.responseCache.createKey(credentials.apiKey,path,params);
+    
+    // Parallele Abrufe derselben Ressource warten auf den ersten und nehmen dann dessen Ergebnis aus dem Cache
+    synchronized (this.responseCache.lock(key))
+    {
+      final ResponseCache.CacheEntry cached = this.responseCache.get(key);
+      if (cached != null && !cached.isExpired() && (maxAge < 0 || cached.getAge() <= maxAge))
+      {
+        Logger.info("using cached response for " + path);
+        Metrics.count("http.cache.hit");
+        return cached.body;
+      }
       
-      final String cust = konto.getKundennummer();
-      if (StringUtils.trimToNull(cust) == null)
-        throw new ApplicationException(i18n.tr("Bitte geben Sie eine Kundenkennung ein."));
+      return this.execute(credentials,path,params,null,cached != null ? cached.etag : null,false,r -> {
+        if (r.getCode() == 304 && cached != null)
+        {
+          Logger.info("not modified: " + path);
+          Metrics.count("http.cache.revalidated");
+          this.responseCache.put(key,cached.body,cached.etag);
+          return cached.body;
+        }
+        
+        final String json = this.read(r.getEntity().getContent());
+        final Header etag = r.getFirstHeader("ETag");
+        this.responseCache.put(key,json,etag != null ? etag.getValue() : null);
+        return json;
+      });
+    }
+  }
+  
+  /**
+   * Ruft einen Kontoauszug ab. Die Buchungen werden hierbei bereits waehrend des Empfangs
+   * direkt aus dem Stream gelesen und einzeln an den Handler uebergeben. Sie werden nicht
+   * in {@link AccountStatement#transactions} gesammelt.
+   * Ist das Archiv aktiviert, wird der Kontoauszug zusaetzlich archiviert. Im Replay-Modus
+   * wird er stattdessen ohne Netzwerk-Zugriff aus dem Archiv gelesen.
+   * Die Funktion greift nicht auf das Konto oder die Datenbank zu und kann daher parallel
+   * aus mehreren Threads aufgerufen werden.
+   * @param credentials die vorab per {@link #getCredentials(Konto)} ermittelten Zugangsdaten.
+   * @param path der Pfad.
+   * @param params die Parameter.
+   * @param handler der Handler, der die Buchungen erhaelt.
+   * @return der Kontoauszug ohne Buchungen.
+   * @throws ApplicationException
+   */
+  public AccountStatement getStatement(Credentials credentials, String path, Map<String,String> params, TransactionHandler handler) throws ApplicationException
+  {
+    if (this.archive.isReplay())
+      return this.archive.replay(path,params,this.statementReader,handler);
+    
+    return this.execute(credentials,path,params,null,null,true,r -> {
+      try (StatementArchive.Recording rec = this.archive.record(path,params))
+      {
+        if (rec == null)
+          return this.statementReader.read(r.getEntity().getContent(),handler);
+        
+        final AccountStatement as = this.statementReader.read(rec.wrap(r.getEntity().getContent()),handler);
+        try
+        {
+          rec.commit();
+        }
+        catch (Exception e)
+        {
+          // Am Archiv soll die Synchronisierung nicht scheitern
+          Logger.error("unable to archive account statement",e);
+        }
+        return as;
+      }
+    });
+  }
 
-      final URIBuilder b = new URIBuilder();
-      b.setScheme("https");
-      b.setHost(this.getApiEndpoint().getHostname());
+  /**
+   * Fuehrt einen GET-Request aus.
+   * @param <T> der Response-Typ.
+   * @param credentials die Zugangsdaten des Kontos.
+   * @param path der Pfad.
+   * @param params die Parameter.
+   * @param token optionale Angabe eines 2FA-Tokens.
+   * @param etag optionale Angabe des ETags einer zwischengespeicherten Antwort.
+   * @param reuseSca true, wenn ein bereits akzeptierter SCA-Token des Kontos gleich mitgesendet werden soll.
+   * @param reader liest die Antwort-Daten bei erfolgreichem Request.
+   * @return die deserialisierten Antwort-Daten.
+   * @throws ApplicationException 
+   */
+  private <T> T execute(Credentials credentials, String path, Map<String,String> params, String token, String etag, boolean reuseSca, ResponseReader<T> reader) throws ApplicationException
+  {
+    try
+    {
+      final String apiKey = credentials.apiKey;
+      final URIBuilder b = this.createUriBuilder();
       b.setPath((path.startsWith("/") ? "" : "/") + path);
       if (params != null)
       {
@@ -309,73 +539,192 @@ public class TransportService
       }
       
       URI uri = b.build();
-      Logger.info("executing GET: " + uri);
-      final HttpGet request = new HttpGet(uri);
-      request.addHeader("Authorization","Bearer " + apiKey);
       
-      if (token != null)
+      // IDs ersetzen wir, damit die Messwerte pro Endpunkt und nicht pro Konto erfasst werden
+      final String metric = "[" + path.replaceAll("/\\d+","/{id}") + "]";
+      final String scaKey = credentials.id + ":" + apiKey;
+      final int maxRetries = settings.getInt("sca.retry.max",5);
+      
+      // Das Fehler-Budget gilt pro Aufruf. Parallele Abrufe anderer Konten beeinflussen es nicht.
+      int rejected = 0;
+      int retries = 0;
+      String next = token;
+      while (true)
       {
-        final String sig = KeyStorage.sign(konto,token);
-        Logger.info("SCA: sending signatur for token: " + token);
-        Logger.debug("SCA: sending signatur: " + sig);
+        this.scheduler.acquire(apiKey);
+        Logger.info("executing GET: " + uri);
+        final HttpGet request = new HttpGet(uri);
+        request.addHeader("Authorization","Bearer " + apiKey);
+        if (etag != null)
+          request.addHeader("If-None-Match",etag);
         
-        request.addHeader(HEADER_2FA_TOKEN,token);
-        request.addHeader(HEADER_2FA_SIGNATURE,sig);
-      }
-      
-      final Object result = this.client.execute(request, response -> {
+        // Wenn wir fuer das Konto bereits einen akzeptierten Token haben, senden wir den gleich mit.
+        // Damit sparen wir uns die zusaetzliche Runde ueber den 403 und das erneute Signieren.
+        final ScaApproval approval = next != null ? new ScaApproval(next,credentials.sign(next)) : (reuseSca ? this.scaCache.get(scaKey) : null);
+        if (approval != null)
+        {
+          if (next == null)
+            Metrics.count("sca.reused");
+          Logger.info("SCA: sending signatur for token: " + approval.token + (next == null ? " (reused)" : ""));
+          Logger.debug("SCA: sending signatur: " + approval.signature);
+          
+          request.addHeader(HEADER_2FA_TOKEN,approval.token);
+          request.addHeader(HEADER_2FA_SIGNATURE,approval.signature);
+        }
         
+        // Der Handler liest die Antwort komplett, bevor die Verbindung wieder freigegeben wird.
+        // Eine SCA-Anforderung wird nur zurueckgemeldet, damit der erneute Versuch erst nach der
+        // Freigabe stattfindet und nicht eine zweite Verbindung belegt.
+        final long started = System.nanoTime();
+        final AtomicBoolean reading = new AtomicBoolean();
+        Object result;
         try
         {
-          final int status = response.getCode();
-          final String json = this.read(response.getEntity().getContent());
-          if (status == 403)
-          {
-            // Checken, ob es ein SCA-Request ist
-            final Header headerStatus = response.getFirstHeader(HEADER_2FA_RESULT);
-            final Header headerToken  = response.getFirstHeader(HEADER_2FA_TOKEN);
-            final String s = headerToken != null ? StringUtils.trimToNull(headerToken.getValue()) : null;
-            if (headerStatus != null && Objects.equals(headerStatus.getValue(),"REJECTED") && s != null)
+          result = this.client.execute(request, response -> {
+            
+            // Latenz bis zum Empfang der Header. Das Lesen der Antwort-Daten wird separat erfasst.
+            Metrics.time("http.request" + metric,started);
+            try
             {
-              final int count = this.errorCount.incrementAndGet();
-              if (count > 5)
-                throw new ApplicationException(i18n.tr("API-Key wurde nicht akzeptiert"));
+              final int status = response.getCode();
+              Metrics.count("http.status[" + status + "]");
+              if (status == 403)
+              {
+                // Einen wiederverwendeten Token verwerfen wir beim ersten 403, unabhaengig vom Grund
+                if (approval != null && this.scaCache.remove(scaKey,approval))
+                  Logger.info("SCA: reused token not accepted anymore, dropped");
+                
+                // Checken, ob es ein SCA-Request ist
+                final Header headerStatus = response.getFirstHeader(HEADER_2FA_RESULT);
+                final Header headerToken  = response.getFirstHeader(HEADER_2FA_TOKEN);
+                final String s = headerToken != null ? StringUtils.trimToNull(headerToken.getValue()) : null;
+                if (headerStatus != null && Objects.equals(headerStatus.getValue(),"REJECTED") && s != null)
+                  return new ScaChallenge(s);
+              }
+              
+              if (status == 304 && etag != null)
+              {
+                reading.set(true);
+                return reader.read(response);
+              }
+              
+              if (status > 299)
+              {
+                String msg = status + " " + response.getReasonPhrase();
+                Logger.error("got http status " + msg);
+                final String json = this.read(response.getEntity().getContent());
+                
+                // Checken, ob wir den Fehler lesen koennen
+                try
+                {
+                  ApiError error = this.mapper.readValue(json, ApiError.class);
+                  msg = error.error + ": " + error.message;
+                }
+                catch (Exception e)
+                {
+                }
+                
+                // Drosselung und Server-Fehler sind meist temporaer. Die melden wir fuer einen erneuten Versuch zurueck.
+                if (status == 429 || status >= 500)
+                {
+                  final Header retryAfter = response.getFirstHeader("Retry-After");
+                  return new RetryableError(new ApplicationException(msg),RequestScheduler.parseRetryAfter(retryAfter != null ? retryAfter.getValue() : null));
+                }
+                throw new ApplicationException(msg);
+              }
               
-              Logger.info("SCA: got request for sca, retry with signed token: " + s);
-              return this.get(konto,path,params,s,type);
+              if (approval != null && reuseSca)
+                this.scaCache.put(scaKey,approval);
+              
+              reading.set(true);
+              if (response.getEntity() == null)
+                return reader.read(response);
+              
+              final CountingEntity entity = new CountingEntity(response.getEntity());
+              response.setEntity(entity);
+              try
+              {
+                return reader.read(response);
+              }
+              finally
+              {
+                Metrics.bytes("http.bytes" + metric,entity.getCount());
+              }
             }
-          }
-          
-          this.errorCount.set(0);
-          
-          if (status > 299)
-          {
-            String msg = status + " " + response.getReasonPhrase();
-            Logger.error("got http status " + msg);
-            
-            // Checken, ob wir den Fehler lesen koennen
-            try
+            catch (ApplicationException ae)
             {
-              ApiError error = this.mapper.readValue(json, ApiError.class);
-              msg = error.error + ": " + error.message;
+              return ae;
+            }
+            catch (IOException | RuntimeException e)
+            {
+              throw e;
             }
             catch (Exception e)
             {
+              return e;
             }
-            throw new ApplicationException(msg);
-          }
-          return this.mapper.readValue(json, type);
+          });
+        }
+        catch (IOException e)
+        {
+          // Verbindungsfehler und Timeouts sind meist temporaer. Hat der Reader noch keine Daten
+          // erhalten, koennen wir den Request gefahrlos wiederholen.
+          if (reading.get())
+            throw e;
+          
+          Metrics.count("http.ioerror");
+          result = new RetryableError(new ApplicationException(i18n.tr("Fehler bei der Verbindung zum Server: {0}",e.getMessage()),e),0L);
         }
-        catch (ApplicationException ae)
+        
+        if (result instanceof ScaChallenge)
         {
-          return ae;
+          Metrics.count("sca.challenge");
+          if (++rejected > maxRetries)
+            throw new ApplicationException(i18n.tr("API-Key wurde nicht akzeptiert"));
+          
+          next = ((ScaChallenge) result).token;
+          Logger.info("SCA: got request for sca, retry with signed token: " + next);
+          continue;
+        }
+        
+        // Es sind nur GET-Requests, die koennen wir gefahrlos wiederholen. Der Fehler tritt vor dem
+        // Lesen der Antwort-Daten auf, der Reader hat also noch keine Daten erhalten.
+        if (result instanceof RetryableError)
+        {
+          final RetryableError error = (RetryableError) result;
+          if (++retries > this.scheduler.getMaxRetries())
+            throw error.error;
+          
+          // Eine sehr lange Pause sitzen wir nicht aus, sondern melden den Fehler gleich
+          final long maxRetryAfter = this.scheduler.getMaxRetryAfter();
+          if (error.retryAfter > maxRetryAfter)
+          {
+            Logger.warn("server requested a pause of " + error.retryAfter + " millis, exceeding the maximum of " + maxRetryAfter + " millis, giving up");
+            throw error.error;
+          }
+          
+          Metrics.count("http.retry");
+          
+          if (error.retryAfter > 0)
+          {
+            this.scheduler.pause(apiKey,error.retryAfter);
+          }
+          else
+          {
+            final long wait = this.scheduler.getBackoff(retries);
+            Logger.warn("request failed: " + error.error.getMessage() + ", retry " + retries + " in " + wait + " millis");
+            RequestScheduler.sleep(wait);
+          }
+          continue;
         }
-      });
 
-      if (result instanceof ApplicationException)
-        throw (ApplicationException) result;
-      
-      return (T) result;
+        if (result instanceof ApplicationException)
+          throw (ApplicationException) result;
+        if (result instanceof Exception)
+          throw (Exception) result;
+        
+        return (T) result;
+      }
     }
     catch (ApplicationException ae)
     {
@@ -392,6 +741,49 @@ public class TransportService
     }
   }
   
+  /**
+   * Ermittelt die Zugangsdaten des Kontos.
+   * Muss im Thread des Aufrufers erfolgen, da hierbei auf das Konto zugegriffen wird.
+   * Der Aufrufer ist auch fuer die Synchronisierung mit anderen Datenbank-Zugriffen zustaendig.
+   * @param konto das Konto.
+   * @return die Zugangsdaten.
+   * @throws ApplicationException
+   */
+  public Credentials getCredentials(Konto konto) throws ApplicationException
+  {
+    try
+    {
+      final String apiKey = StringUtils.trimToNull(konto.getMeta(Plugin.META_PARAM_APIKEY,null));
+      if (apiKey == null)
+        throw new ApplicationException(i18n.tr("Bitte geben Sie einen API-Key in den Synchronisationsoptionen ein."));
+      
+      if (StringUtils.trimToNull(konto.getKundennummer()) == null)
+        throw new ApplicationException(i18n.tr("Bitte geben Sie eine Kundenkennung ein."));
+      
+      // Das Schluesselpaar wird nur fuer SCA benoetigt. Ein Fehler beim Laden wird daher erst gemeldet, wenn signiert werden muss.
+      KeyPair keyPair = null;
+      ApplicationException keyError = null;
+      try
+      {
+        keyPair = KeyStorage.getKey(konto);
+      }
+      catch (ApplicationException ae)
+      {
+        keyError = ae;
+      }
+      return new Credentials(konto.getID(),apiKey,keyPair,keyError);
+    }
+    catch (ApplicationException ae)
+    {
+      throw ae;
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to read credentials",e);
+      throw new ApplicationException(i18n.tr("Fehler beim Erstellen der Abfrage: {0}",e.getMessage()));
+    }
+  }
+  
   /**
    * Liest die JSON-Daten aus dem Stream und loggt sie.
    * @param is der Stream.
@@ -407,6 +799,28 @@ public class TransportService
     return s;
   }
   
+  /**
+   * Erzeugt den URI-Builder mit Schema, Host und Port des aktuell konfigurierten API-Endpunktes.
+   * @return der URI-Builder.
+   */
+  private URIBuilder createUriBuilder()
+  {
+    final URIBuilder b = new URIBuilder();
+    final ApiEndpoint endpoint = this.getApiEndpoint();
+    if (endpoint == ApiEndpoint.LOCAL)
+    {
+      b.setScheme(settings.getString("endpoint.local.scheme","http"));
+      b.setHost(settings.getString("endpoint.local.host","localhost"));
+      b.setPort(settings.getInt("endpoint.local.port",8089));
+    }
+    else
+    {
+      b.setScheme("https");
+      b.setHost(endpoint.getHostname());
+    }
+    return b;
+  }
+  
   /**
    * Liefert den aktuell konfigurierten API-Endpunkt.
    * @return der aktuell konfigurierte API-Endpunkt.
@@ -416,6 +830,101 @@ public class TransportService
     return ApiEndpoint.valueOf(settings.getString("endpoint",ApiEndpoint.LIVE.name()));
   }
   
+  /**
+   * Die fuer die Requests eines Kontos benoetigten Daten.
+   * Werden einmalig im Thread des Aufrufers ermittelt, damit parallele Abrufe weder
+   * auf das Konto noch auf die Datenbank zugreifen.
+   */
+  public static class Credentials
+  {
+    private final String id;
+    private final String apiKey;
+    private final KeyPair keyPair;
+    private final ApplicationException keyError;
+    
+    /**
+     * ct.
+     * @param id die ID des Kontos.
+     * @param apiKey der API-Key.
+     * @param keyPair das Schluesselpaar. Kann NULL sein.
+     * @param keyError der Fehler beim Laden des Schluesselpaares. Kann NULL sein.
+     */
+    private Credentials(String id, String apiKey, KeyPair keyPair, ApplicationException keyError)
+    {
+      this.id       = id;
+      this.apiKey   = apiKey;
+      this.keyPair  = keyPair;
+      this.keyError = keyError;
+    }
+    
+    /**
+     * Signiert den Token.
+     * @param token der Token.
+     * @return die Signatur.
+     * @throws ApplicationException
+     */
+    private String sign(String token) throws ApplicationException
+    {
+      if (this.keyError != null)
+        throw this.keyError;
+      return KeyStorage.sign(this.keyPair,token);
+    }
+  }
+  
+  /**
+   * Ein SCA-Token samt Signatur.
+   */
+  private static class ScaApproval
+  {
+    private final String token;
+    private final String signature;
+    
+    /**
+     * ct.
+     * @param token der Token.
+     * @param signature die Signatur des Tokens.
+     */
+    private ScaApproval(String token, String signature)
+    {
+      this.token     = token;
+      this.signature = signature;
+    }
+  }
+  
+  /**
+   * Die Anforderung des Servers, den Request mit einem signierten Token zu wiederholen.
+   */
+  private static class ScaChallenge
+  {
+    private final String token;
+    
+    /**
+     * ct.
+     * @param token der zu signierende Token.
+     */
+    private ScaChallenge(String token)
+    {
+      this.token = token;
+    }
+  }
+  
+  /**
+   * Ein temporaerer Fehler, nach dem der Request wiederholt werden kann.
+   */
+  private static class RetryableError
+  {
+    private final ApplicationException error;
+    private final long retryAfter;
+    
+    /**
+     * ct.
+     * @param error der Fehler.
+     * @param retryAfter die vom Server vorgegebene Wartezeit in Millisekunden oder 0.
+     */
+    private RetryableError(ApplicationException error, long retryAfter)
+    {
+      this.error      = error;
+      this.retryAfter = retryAfter;
+    }
+  }
 }
-
-